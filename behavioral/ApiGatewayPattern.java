@@ -10,12 +10,50 @@
  * @since 02/05/2024
  */
 
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 // BackendService interface representing backend services
 interface BackendService {
     String processRequest(String request);
+
+    // Method to process several requests in one call; services that can do better should override it
+    default List<String> processBatch(List<String> requests) {
+        List<String> responses = new ArrayList<>(requests.size());
+        for (String request : requests) {
+            responses.add(processRequest(request));
+        }
+        return responses;
+    }
+}
+
+// AsyncBackendService interface representing backend services that answer without blocking the caller
+interface AsyncBackendService {
+    CompletableFuture<String> processRequestAsync(String request);
+
+    // Method to adapt a blocking backend service by running it on the given executor
+    static AsyncBackendService of(BackendService backendService, Executor executor) {
+        return request -> CompletableFuture.supplyAsync(() -> backendService.processRequest(request), executor);
+    }
 }
 
 // UserService class implementing BackendService interface
@@ -27,6 +65,33 @@ class UserService implements BackendService {
     }
 }
 
+// CatalogService class implementing BackendService interface with a native batch endpoint
+class CatalogService implements BackendService {
+    private final AtomicInteger backendCalls = new AtomicInteger();
+
+    @Override
+    public String processRequest(String request) {
+        backendCalls.incrementAndGet();
+        return "Response from CatalogService: " + request;
+    }
+
+    @Override
+    public List<String> processBatch(List<String> requests) {
+        // One round trip serves the whole batch
+        backendCalls.incrementAndGet();
+        List<String> responses = new ArrayList<>(requests.size());
+        for (String request : requests) {
+            responses.add("Response from CatalogService: " + request);
+        }
+        return responses;
+    }
+
+    // Method to get how many calls actually reached the backend
+    public int getBackendCalls() {
+        return backendCalls.get();
+    }
+}
+
 // ProductService class implementing BackendService interface
 class ProductService implements BackendService {
     @Override
@@ -36,30 +101,940 @@ class ProductService implements BackendService {
     }
 }
 
+// CoalescingBatcher class forming a gateway pipeline stage in front of one backend service: identical
+// in-flight requests share a single call (single-flight), and distinct ones are grouped into micro-batches
+class CoalescingBatcher implements AsyncBackendService {
+    private final BackendService backendService;
+    private final int maxBatchSize;
+    private final long windowMillis;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private List<PendingRequest> buffer = new ArrayList<>(); // Guarded by this
+    private long generation = 0; // Guarded by this; identifies the batch a scheduled flush belongs to
+
+    // A request waiting in the current batch together with the future its callers share
+    private static final class PendingRequest {
+        final String request;
+        final CompletableFuture<String> response;
+
+        PendingRequest(String request, CompletableFuture<String> response) {
+            this.request = request;
+            this.response = response;
+        }
+    }
+
+    public CoalescingBatcher(BackendService backendService, Duration window, int maxBatchSize, Executor executor,
+            ScheduledExecutorService scheduler) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+        }
+        this.backendService = backendService;
+        this.windowMillis = window.toMillis();
+        this.maxBatchSize = maxBatchSize;
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public CompletableFuture<String> processRequestAsync(String request) {
+        CompletableFuture<String> shared = inFlight.get(request);
+        if (shared == null) {
+            CompletableFuture<String> created = new CompletableFuture<>();
+            shared = inFlight.putIfAbsent(request, created);
+            if (shared == null) {
+                // This caller won the race and is responsible for actually sending the request
+                shared = created;
+                created.whenComplete((response, error) -> inFlight.remove(request, created));
+                enqueue(new PendingRequest(request, created));
+            }
+        }
+        // Each caller gets its own copy so timeouts or cancellation never affect the other waiters
+        return shared.copy();
+    }
+
+    // Method to add a request to the current batch, flushing it once it is full
+    private void enqueue(PendingRequest pending) {
+        List<PendingRequest> fullBatch = null;
+        synchronized (this) {
+            buffer.add(pending);
+            if (buffer.size() >= maxBatchSize) {
+                fullBatch = takeBuffer();
+            } else if (buffer.size() == 1) {
+                // The first request of a batch starts the window
+                long batchGeneration = generation;
+                scheduler.schedule(() -> flushIfCurrent(batchGeneration), windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (fullBatch != null) {
+            dispatch(fullBatch);
+        }
+    }
+
+    // Method to flush the batch the window was started for, unless it was already flushed for being full
+    private void flushIfCurrent(long batchGeneration) {
+        List<PendingRequest> batch;
+        synchronized (this) {
+            if (generation != batchGeneration || buffer.isEmpty()) {
+                return;
+            }
+            batch = takeBuffer();
+        }
+        dispatch(batch);
+    }
+
+    // Method to hand over the current buffer and start a new batch; callers hold the lock
+    private List<PendingRequest> takeBuffer() {
+        List<PendingRequest> batch = buffer;
+        buffer = new ArrayList<>();
+        generation++;
+        return batch;
+    }
+
+    // Method to send one batch to the backend and complete every waiting future
+    private void dispatch(List<PendingRequest> batch) {
+        try {
+            executor.execute(() -> send(batch));
+        } catch (RuntimeException e) {
+            finish(batch, e); // The executor refused the batch, e.g. because it is shutting down
+        }
+    }
+
+    private void send(List<PendingRequest> batch) {
+        List<String> requests = new ArrayList<>(batch.size());
+        for (PendingRequest pending : batch) {
+            requests.add(pending.request);
+        }
+        Throwable failure = null;
+        try {
+            List<String> responses = backendService.processBatch(requests);
+            if (responses.size() != batch.size()) {
+                throw new IllegalStateException("Backend returned " + responses.size() + " responses for "
+                        + batch.size() + " requests");
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                PendingRequest pending = batch.get(i);
+                // Leave the in-flight map first, so a caller woken by the response starts a fresh request
+                inFlight.remove(pending.request, pending.response);
+                pending.response.complete(responses.get(i));
+            }
+        } catch (Throwable e) {
+            failure = e;
+            if (e instanceof Error) {
+                throw e; // After the finally block has released the waiters
+            }
+        } finally {
+            finish(batch, failure);
+        }
+    }
+
+    // Method to fail every future of the batch still waiting, with the failure or for lack of a response,
+    // and drop the batch's in-flight entries, so no later caller joins a future that never completes
+    private void finish(List<PendingRequest> batch, Throwable failure) {
+        for (PendingRequest pending : batch) {
+            inFlight.remove(pending.request, pending.response);
+            pending.response.completeExceptionally(failure != null ? failure
+                    : new IllegalStateException("No response for " + pending.request));
+        }
+    }
+}
+
+// ResponseCache interface representing a pluggable store for backend responses
+interface ResponseCache {
+    // Method to look up a cached response, or null when absent
+    CachedResponse get(String request);
+
+    // Method to store a response, possibly evicting others to stay within the size bound
+    void put(String request, CachedResponse response);
+
+    // Method to get the number of entries evicted to stay within the size bound
+    long getEvictionCount();
+}
+
+// CachedResponse class holding a cached backend response and when it was fetched
+class CachedResponse {
+    private final String response;
+    private final long fetchedAtNanos;
+
+    public CachedResponse(String response, long fetchedAtNanos) {
+        this.response = response;
+        this.fetchedAtNanos = fetchedAtNanos;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+    public long getFetchedAtNanos() {
+        return fetchedAtNanos;
+    }
+}
+
+// SegmentedLruCache class bounding cached responses by total weight (approximate bytes). Entries enter a
+// probation segment and are promoted to a protected segment on a second hit, so one-off requests cannot
+// flush out the hot set. The cache is sharded by key hash to keep lock hold times and contention low
+class SegmentedLruCache implements ResponseCache {
+    private static final int SHARDS = 16;
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final LongAdder evictions = new LongAdder();
+
+    public SegmentedLruCache(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Maximum weight must be positive: " + maxWeight);
+        }
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(Math.max(1, maxWeight / SHARDS));
+        }
+    }
+
+    @Override
+    public CachedResponse get(String request) {
+        return shardFor(request).get(request);
+    }
+
+    @Override
+    public void put(String request, CachedResponse response) {
+        shardFor(request).put(request, response);
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    // Method to pick the shard owning a key
+    private Shard shardFor(String request) {
+        int hash = request.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (SHARDS - 1)];
+    }
+
+    // Method to estimate the memory held by one entry
+    private static long weigh(String request, CachedResponse response) {
+        return 2L * (request.length() + response.getResponse().length()) + 64;
+    }
+
+    // One independently locked slice of the cache with its own probation and protected segments
+    private final class Shard {
+        private final long maxWeight;
+        private final long maxProtectedWeight;
+        private final LinkedHashMap<String, CachedResponse> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, CachedResponse> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationWeight = 0;
+        private long protectedWeight = 0;
+
+        Shard(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.maxProtectedWeight = (long) (maxWeight * PROTECTED_SHARE);
+        }
+
+        synchronized CachedResponse get(String request) {
+            CachedResponse response = protectedSegment.get(request);
+            if (response != null) {
+                return response;
+            }
+            response = probation.remove(request);
+            if (response == null) {
+                return null;
+            }
+            // Second hit: promote, demoting the protected segment's least recently used entries if needed
+            long weight = weigh(request, response);
+            probationWeight -= weight;
+            protectedSegment.put(request, response);
+            protectedWeight += weight;
+            Iterator<Map.Entry<String, CachedResponse>> eldest = protectedSegment.entrySet().iterator();
+            while (protectedWeight > maxProtectedWeight && eldest.hasNext()) {
+                Map.Entry<String, CachedResponse> demoted = eldest.next();
+                if (demoted.getKey().equals(request)) {
+                    break;
+                }
+                eldest.remove();
+                long demotedWeight = weigh(demoted.getKey(), demoted.getValue());
+                protectedWeight -= demotedWeight;
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationWeight += demotedWeight;
+            }
+            return response;
+        }
+
+        synchronized void put(String request, CachedResponse response) {
+            long weight = weigh(request, response);
+            CachedResponse replaced = protectedSegment.get(request);
+            if (replaced != null) {
+                protectedSegment.put(request, response);
+                protectedWeight += weight - weigh(request, replaced);
+            } else {
+                replaced = probation.put(request, response);
+                probationWeight += weight - (replaced == null ? 0 : weigh(request, replaced));
+            }
+            evictOverweight();
+        }
+
+        // Method to evict least recently used entries, probation first, until the shard fits again
+        private void evictOverweight() {
+            while (probationWeight + protectedWeight > maxWeight) {
+                LinkedHashMap<String, CachedResponse> victims = probation.isEmpty() ? protectedSegment : probation;
+                Iterator<Map.Entry<String, CachedResponse>> eldest = victims.entrySet().iterator();
+                if (!eldest.hasNext()) {
+                    return;
+                }
+                Map.Entry<String, CachedResponse> victim = eldest.next();
+                eldest.remove();
+                long weight = weigh(victim.getKey(), victim.getValue());
+                if (victims == probation) {
+                    probationWeight -= weight;
+                } else {
+                    protectedWeight -= weight;
+                }
+                evictions.increment();
+            }
+        }
+    }
+}
+
+// CachingBackendService class forming a gateway pipeline stage that serves repeated requests from a
+// response cache. Fresh entries are returned directly; entries past their TTL but within the
+// stale-while-revalidate window are returned immediately while one background call refreshes them
+class CachingBackendService implements AsyncBackendService {
+    private final AsyncBackendService delegate;
+    private final ResponseCache cache;
+    private final long ttlNanos;
+    private final long staleNanos; // TTL plus the stale-while-revalidate window
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CachingBackendService(AsyncBackendService delegate, ResponseCache cache, Duration ttl,
+            Duration staleWhileRevalidate) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.ttlNanos = ttl.toNanos();
+        this.staleNanos = ttlNanos + staleWhileRevalidate.toNanos();
+    }
+
+    @Override
+    public CompletableFuture<String> processRequestAsync(String request) {
+        CachedResponse cached = cache.get(request);
+        if (cached != null) {
+            long age = System.nanoTime() - cached.getFetchedAtNanos();
+            if (age < ttlNanos) {
+                hits.increment();
+                return CompletableFuture.completedFuture(cached.getResponse());
+            }
+            if (age < staleNanos) {
+                staleHits.increment();
+                if (refreshing.add(request)) {
+                    fetch(request).whenComplete((response, error) -> refreshing.remove(request));
+                }
+                return CompletableFuture.completedFuture(cached.getResponse());
+            }
+        }
+        misses.increment();
+        return fetch(request);
+    }
+
+    // Method to get the hit, miss and eviction counts of this stage
+    public CacheStats getStats() {
+        return new CacheStats(hits.sum(), staleHits.sum(), misses.sum(), cache.getEvictionCount());
+    }
+
+    // Method to call the backend and cache a successful response
+    private CompletableFuture<String> fetch(String request) {
+        return delegate.processRequestAsync(request).thenApply(response -> {
+            cache.put(request, new CachedResponse(response, System.nanoTime()));
+            return response;
+        });
+    }
+}
+
+// CacheStats class holding a point-in-time view of a response cache's effectiveness
+class CacheStats {
+    private final long hits;
+    private final long staleHits;
+    private final long misses;
+    private final long evictions;
+
+    public CacheStats(long hits, long staleHits, long misses, long evictions) {
+        this.hits = hits;
+        this.staleHits = staleHits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getStaleHits() {
+        return staleHits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    // Method to get the share of requests answered from the cache, stale or not
+    public double getHitRate() {
+        long total = hits + staleHits + misses;
+        return total == 0 ? 0 : (hits + staleHits) / (double) total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d staleHits=%d misses=%d evictions=%d hitRate=%.2f", hits, staleHits, misses,
+                evictions, getHitRate());
+    }
+}
+
+// RouteTable class holding an immutable routing engine compiled into a trie over path segments. Each
+// route is a path pattern of literal segments, "*" (any one segment) and a trailing "**" (any remainder),
+// optionally restricted to an HTTP method and required header values, and targets a service name.
+// Literal segments win over "*", which wins over "**"; among routes ending at the same node the first
+// one added wins. Matching walks the path in place, so it allocates nothing
+class RouteTable {
+    private final Node root;
+    private final int size;
+
+    // Route class representing one compiled routing rule
+    static final class Route {
+        private final String pattern;
+        private final String method; // Null matches any method
+        private final String[] headerNames;
+        private final String[] headerValues;
+        private final String service;
+
+        private Route(String pattern, String method, Map<String, String> headers, String service) {
+            this.pattern = pattern;
+            this.method = method;
+            this.headerNames = headers.keySet().toArray(new String[0]);
+            this.headerValues = new String[headerNames.length];
+            for (int i = 0; i < headerNames.length; i++) {
+                headerValues[i] = headers.get(headerNames[i]);
+            }
+            this.service = service;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        // Method to check the method and header predicates of the route
+        private boolean matches(String requestMethod, Map<String, String> requestHeaders) {
+            if (method != null && !method.equals(requestMethod)) {
+                return false;
+            }
+            for (int i = 0; i < headerNames.length; i++) {
+                if (!headerValues[i].equals(requestHeaders.get(headerNames[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Compiled trie node: literal children are kept sorted for binary search over path regions
+    private static final class Node {
+        String[] labels = new String[0];
+        Node[] children = new Node[0];
+        Node wildcard;
+        Route[] terminal = new Route[0];
+        Route[] catchAll = new Route[0];
+    }
+
+    private RouteTable(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    // Method to get an empty route table
+    public static RouteTable empty() {
+        return new Builder().build();
+    }
+
+    // Method to get the number of routes in the table
+    public int size() {
+        return size;
+    }
+
+    // Method to find the route for a request, or null when none matches
+    public Route match(String method, String path, Map<String, String> headers) {
+        return match(root, path, skipSlashes(path, 0), method, headers);
+    }
+
+    // Method to match the path from the given offset against the subtree, backtracking on dead ends
+    private static Route match(Node node, String path, int start, String method, Map<String, String> headers) {
+        if (start >= path.length()) {
+            Route route = firstMatching(node.terminal, method, headers);
+            return route != null ? route : firstMatching(node.catchAll, method, headers);
+        }
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+            end = path.length();
+        }
+        int next = skipSlashes(path, end);
+
+        int index = findChild(node.labels, path, start, end);
+        if (index >= 0) {
+            Route route = match(node.children[index], path, next, method, headers);
+            if (route != null) {
+                return route;
+            }
+        }
+        if (node.wildcard != null) {
+            Route route = match(node.wildcard, path, next, method, headers);
+            if (route != null) {
+                return route;
+            }
+        }
+        return firstMatching(node.catchAll, method, headers);
+    }
+
+    private static Route firstMatching(Route[] routes, String method, Map<String, String> headers) {
+        for (Route route : routes) {
+            if (route.matches(method, headers)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    // Method to binary search the sorted labels for the path region [start, end)
+    private static int findChild(String[] labels, String path, int start, int end) {
+        int low = 0;
+        int high = labels.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int comparison = compareRegion(labels[mid], path, start, end);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Method to compare a label with a path region using String.compareTo ordering
+    private static int compareRegion(String label, String path, int start, int end) {
+        int length = end - start;
+        int common = Math.min(label.length(), length);
+        for (int i = 0; i < common; i++) {
+            int difference = label.charAt(i) - path.charAt(start + i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return label.length() - length;
+    }
+
+    private static int skipSlashes(String path, int index) {
+        while (index < path.length() && path.charAt(index) == '/') {
+            index++;
+        }
+        return index;
+    }
+
+    // Builder class collecting routes and compiling them into a RouteTable off the request path
+    public static class Builder {
+        private final List<Route> routes = new ArrayList<>();
+
+        // Method to add a route matching any method and headers
+        public Builder route(String pattern, String service) {
+            return route(null, pattern, Map.of(), service);
+        }
+
+        // Method to add a route restricted to a method (null for any) and required header values
+        public Builder route(String method, String pattern, Map<String, String> headers, String service) {
+            routes.add(new Route(pattern, method, headers, service));
+            return this;
+        }
+
+        // Build method to compile the collected routes into an immutable trie
+        public RouteTable build() {
+            BuildNode root = new BuildNode();
+            for (Route route : routes) {
+                String pattern = route.getPattern();
+                BuildNode node = root;
+                String[] segments = pattern.split("/+");
+                boolean catchAll = false;
+                for (int i = 0; i < segments.length; i++) {
+                    String segment = segments[i];
+                    if (segment.isEmpty()) {
+                        continue;
+                    }
+                    if (segment.equals("**")) {
+                        if (i != segments.length - 1) {
+                            throw new IllegalArgumentException("'**' must be the last segment: " + pattern);
+                        }
+                        catchAll = true;
+                    } else if (segment.equals("*")) {
+                        if (node.wildcard == null) {
+                            node.wildcard = new BuildNode();
+                        }
+                        node = node.wildcard;
+                    } else {
+                        node = node.children.computeIfAbsent(segment, key -> new BuildNode());
+                    }
+                }
+                (catchAll ? node.catchAll : node.terminal).add(route);
+            }
+            return new RouteTable(root.compile(), routes.size());
+        }
+    }
+
+    // Mutable trie node used only while building
+    private static final class BuildNode {
+        final TreeMap<String, BuildNode> children = new TreeMap<>();
+        BuildNode wildcard;
+        final List<Route> terminal = new ArrayList<>();
+        final List<Route> catchAll = new ArrayList<>();
+
+        Node compile() {
+            Node node = new Node();
+            node.labels = children.keySet().toArray(new String[0]);
+            node.children = new Node[node.labels.length];
+            int i = 0;
+            for (BuildNode child : children.values()) {
+                node.children[i++] = child.compile();
+            }
+            node.wildcard = wildcard == null ? null : wildcard.compile();
+            node.terminal = terminal.toArray(new Route[0]);
+            node.catchAll = catchAll.toArray(new Route[0]);
+            return node;
+        }
+    }
+}
+
+// RateLimiter class enforcing a rate per key with the generic cell rate algorithm (GCRA). Each key keeps a
+// single "theoretical arrival time" updated by CAS, so checks are lock-free and need no refill thread.
+// Keys whose arrival time has passed are indistinguishable from new ones, so they are evicted once the
+// map reaches its bound. Eviction examines a small batch of keys per new key, resuming where the last
+// batch stopped, so no request pays for a sweep of the whole map; while the map is still full new keys are
+// rejected, which keeps memory bounded and fails closed
+class RateLimiter {
+    private static final int EVICTION_BATCH = 64; // Keys examined per eviction step
+
+    private final long emissionIntervalNanos; // Time one permit "costs"
+    private final long burstToleranceNanos; // How far ahead of schedule a key may run
+    private final int maxKeys;
+    private final ConcurrentHashMap<String, AtomicLong> arrivalTimes = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private Iterator<Map.Entry<String, AtomicLong>> evictionCursor; // Used only by the thread evicting
+
+    public RateLimiter(double permitsPerSecond, int burst, int maxKeys) {
+        if (permitsPerSecond <= 0 || burst <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("Rate, burst and key bound must be positive");
+        }
+        this.emissionIntervalNanos = (long) (1_000_000_000L / permitsPerSecond);
+        this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+        this.maxKeys = maxKeys;
+    }
+
+    // Method to take one permit for the key, returning false when the key is over its rate
+    public boolean tryAcquire(String key) {
+        long now = System.nanoTime();
+        AtomicLong arrivalTime = arrivalTimes.get(key);
+        if (arrivalTime == null) {
+            if (arrivalTimes.size() >= maxKeys && !evictIdleKeys(now)) {
+                return false; // Still full after eviction: no room to track the key, so reject it
+            }
+            arrivalTime = arrivalTimes.computeIfAbsent(key, ignored -> new AtomicLong(now));
+        }
+        while (true) {
+            long stored = arrivalTime.get();
+            long theoreticalArrival = Math.max(stored, now);
+            if (theoreticalArrival - now > burstToleranceNanos) {
+                return false;
+            }
+            if (arrivalTime.compareAndSet(stored, theoreticalArrival + emissionIntervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    // Method to give back a permit that tryAcquire granted, for a request another check then rejected.
+    // Moving the arrival time back by one interval never leaves it below the time the permit was taken, so
+    // a release cannot create more burst than the key had
+    public void release(String key) {
+        AtomicLong arrivalTime = arrivalTimes.get(key);
+        if (arrivalTime != null) { // Otherwise the key was evicted, which already forgot the permit
+            arrivalTime.addAndGet(-emissionIntervalNanos);
+        }
+    }
+
+    // Method to get the number of keys currently tracked
+    public int getTrackedKeys() {
+        return arrivalTimes.size();
+    }
+
+    // Method to drop the fully replenished keys among the next batch, wrapping around at the end of the map;
+    // only one thread evicts at a time. Returns whether there is room for a new key afterwards
+    private boolean evictIdleKeys(long now) {
+        if (evicting.compareAndSet(false, true)) {
+            try {
+                for (int i = 0; i < EVICTION_BATCH; i++) {
+                    if (evictionCursor == null || !evictionCursor.hasNext()) {
+                        evictionCursor = arrivalTimes.entrySet().iterator();
+                        if (!evictionCursor.hasNext()) {
+                            break;
+                        }
+                    }
+                    Map.Entry<String, AtomicLong> entry = evictionCursor.next();
+                    if (entry.getValue().get() <= now) {
+                        arrivalTimes.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+        return arrivalTimes.size() < maxKeys;
+    }
+}
+
+// RateLimiterBenchmark class measuring the per-request overhead of the rate limiter
+class RateLimiterBenchmark {
+    private static final int KEYS = 1_000_000;
+    private static final int CHECKS = 20_000_000;
+
+    // Method to time limiter checks for one hot key and for a million distinct client keys
+    public static void run() {
+        String[] clients = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            clients[i] = "client-" + i;
+        }
+        for (int round = 0; round < 3; round++) {
+            RateLimiter hotKey = new RateLimiter(1_000_000_000, 1000, KEYS);
+            long start = System.nanoTime();
+            int allowed = 0;
+            for (int i = 0; i < CHECKS; i++) {
+                if (hotKey.tryAcquire("client-0")) {
+                    allowed++;
+                }
+            }
+            double hotNanos = (System.nanoTime() - start) / (double) CHECKS;
+
+            RateLimiter manyKeys = new RateLimiter(100, 10, KEYS);
+            start = System.nanoTime();
+            for (int i = 0; i < CHECKS; i++) {
+                if (manyKeys.tryAcquire(clients[(int) ((i * 2654435761L) % KEYS)])) {
+                    allowed++;
+                }
+            }
+            double manyNanos = (System.nanoTime() - start) / (double) CHECKS;
+            System.out.printf("Round %d: hot key %.1f ns/check, %d keys %.1f ns/check (%d allowed, %d tracked)%n",
+                    round + 1, hotNanos, KEYS, manyNanos, allowed, manyKeys.getTrackedKeys());
+        }
+    }
+}
+
 // ApiGateway class acting as the API Gateway
 class ApiGateway {
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(2);
+    private static final String ANONYMOUS_CLIENT = "anonymous";
+    private static final String CLIENT_ID_HEADER = "X-Client-Id";
+    private static final String RATE_LIMITED = "Rate limit exceeded";
     private Map<String, BackendService> serviceMap;
+    private Map<String, AsyncBackendService> asyncServiceMap;
+    private Map<String, Duration> routeTimeouts;
+    private ExecutorService backendExecutor; // Runs blocking backend services off the caller's thread
+    private ScheduledExecutorService batchScheduler; // Closes micro-batch windows
+    private volatile RouteTable routeTable = RouteTable.empty(); // Replaced wholesale, never mutated
+    private volatile RateLimiter clientRateLimiter; // Null when clients are not limited
+    private Map<String, RateLimiter> routeRateLimiters = new ConcurrentHashMap<>();
 
     public ApiGateway() {
-        serviceMap = new HashMap<>();
+        serviceMap = new ConcurrentHashMap<>();
         serviceMap.put("user", new UserService());
         serviceMap.put("product", new ProductService());
+
+        backendExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "gateway-backend");
+            thread.setDaemon(true);
+            return thread;
+        });
+        batchScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gateway-batch-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        asyncServiceMap = new ConcurrentHashMap<>();
+        routeTimeouts = new ConcurrentHashMap<>();
+        for (Map.Entry<String, BackendService> entry : serviceMap.entrySet()) {
+            asyncServiceMap.put(entry.getKey(), AsyncBackendService.of(entry.getValue(), backendExecutor));
+        }
+    }
+
+    // Method to register a blocking backend service under a service name
+    public void registerService(String service, BackendService backendService) {
+        serviceMap.put(service, backendService);
+        asyncServiceMap.put(service, AsyncBackendService.of(backendService, backendExecutor));
+    }
+
+    // Method to register a natively asynchronous backend service with its own timeout
+    public void registerAsyncService(String service, AsyncBackendService backendService, Duration timeout) {
+        asyncServiceMap.put(service, backendService);
+        routeTimeouts.put(service, timeout);
+    }
+
+    // Method to put a coalescing, micro-batching stage in front of a registered blocking service; batches
+    // are sent when they reach the maximum size or the window since their first request elapses
+    public void enableBatching(String service, Duration window, int maxBatchSize) {
+        BackendService backendService = serviceMap.get(service);
+        if (backendService == null) {
+            throw new IllegalArgumentException("Service not found: " + service);
+        }
+        asyncServiceMap.put(service,
+                new CoalescingBatcher(backendService, window, maxBatchSize, backendExecutor, batchScheduler));
+    }
+
+    // Method to serve a service's responses from a cache with the given TTL, stale-while-revalidate window
+    // and maximum weight; the cache sits in front of any batching stage already enabled for the service
+    public CachingBackendService enableCaching(String service, Duration ttl, Duration staleWhileRevalidate,
+            long maxWeight) {
+        AsyncBackendService backendService = asyncServiceMap.get(service);
+        if (backendService == null) {
+            throw new IllegalArgumentException("Service not found: " + service);
+        }
+        CachingBackendService cachingService = new CachingBackendService(backendService,
+                new SegmentedLruCache(maxWeight), ttl, staleWhileRevalidate);
+        asyncServiceMap.put(service, cachingService);
+        return cachingService;
+    }
+
+    // Method to swap in a new route table; build it up front so requests never wait on compilation
+    public void updateRoutes(RouteTable newRouteTable) {
+        routeTable = newRouteTable;
+    }
+
+    // Method to limit every client across all routes, tracking at most maxClients idle-evictable clients
+    public void setClientRateLimit(double permitsPerSecond, int burst, int maxClients) {
+        clientRateLimiter = new RateLimiter(permitsPerSecond, burst, maxClients);
+    }
+
+    // Method to limit each client on one route
+    public void setRouteRateLimit(String service, double permitsPerSecond, int burst, int maxClients) {
+        routeRateLimiters.put(service, new RateLimiter(permitsPerSecond, burst, maxClients));
+    }
+
+    // Method to change how long the gateway waits for a service before giving up
+    public void setRouteTimeout(String service, Duration timeout) {
+        routeTimeouts.put(service, timeout);
     }
 
     public String handleRequest(String service, String request) {
+        return handleRequest(ANONYMOUS_CLIENT, service, request);
+    }
+
+    // Method to route a request on behalf of a client on the caller's thread, rate limited like the
+    // asynchronous path
+    public String handleRequest(String clientId, String service, String request) {
         // Route request to the appropriate backend service based on service name
         BackendService backendService = serviceMap.get(service);
-        if (backendService != null) {
-            return backendService.processRequest(request);
-        } else {
+        if (backendService == null) {
             return "Service not found: " + service;
         }
+        if (!admit(clientId, service)) {
+            return RATE_LIMITED;
+        }
+        return backendService.processRequest(request);
+    }
+
+    // Method to route a request without blocking the caller; the future never completes exceptionally
+    public CompletableFuture<String> handleRequestAsync(String service, String request) {
+        return handleRequestAsync(ANONYMOUS_CLIENT, service, request);
+    }
+
+    // Method to route a request on behalf of a client, rejecting it before it reaches the backend when the
+    // client is over its gateway-wide or per-route rate
+    public CompletableFuture<String> handleRequestAsync(String clientId, String service, String request) {
+        AsyncBackendService backendService = asyncServiceMap.get(service);
+        if (backendService == null) {
+            return CompletableFuture.completedFuture("Service not found: " + service);
+        }
+        if (!admit(clientId, service)) {
+            // A fresh future per rejection: a caller completing or obtruding it must not affect any other
+            return CompletableFuture.completedFuture(RATE_LIMITED);
+        }
+        Duration timeout = routeTimeouts.getOrDefault(service, DEFAULT_TIMEOUT);
+        return backendService.processRequestAsync(request)
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .exceptionally(error -> describeFailure(service, error));
+    }
+
+    // Method to route an HTTP-style request by method, path and headers through the route table
+    public CompletableFuture<String> handleHttpRequestAsync(String method, String path, Map<String, String> headers,
+            String request) {
+        RouteTable.Route route = routeTable.match(method, path, headers);
+        if (route == null) {
+            return CompletableFuture.completedFuture("No route for: " + method + " " + path);
+        }
+        String clientId = headers.getOrDefault(CLIENT_ID_HEADER, ANONYMOUS_CLIENT);
+        return handleRequestAsync(clientId, route.getService(), request);
+    }
+
+    // Method to send one request to several services in parallel and aggregate their responses, so the
+    // total latency is that of the slowest service rather than the sum of all of them
+    public CompletableFuture<Map<String, String>> fanOutAsync(List<String> services, String request) {
+        Map<String, CompletableFuture<String>> pending = new LinkedHashMap<>();
+        for (String service : services) {
+            pending.put(service, handleRequestAsync(service, request));
+        }
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    Map<String, String> responses = new LinkedHashMap<>();
+                    pending.forEach((service, future) -> responses.put(service, future.join()));
+                    return responses;
+                });
+    }
+
+    // Method to check a request against the client's gateway-wide and per-route rates. A request the route
+    // rejects gets its gateway-wide permit back, so it does not count against the client's other routes
+    private boolean admit(String clientId, String service) {
+        RateLimiter clientLimiter = clientRateLimiter;
+        RateLimiter routeLimiter = routeRateLimiters.get(service);
+        if (clientLimiter != null && !clientLimiter.tryAcquire(clientId)) {
+            return false;
+        }
+        if (routeLimiter != null && !routeLimiter.tryAcquire(clientId)) {
+            if (clientLimiter != null) {
+                clientLimiter.release(clientId);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // Method to turn a failed backend call into a gateway response
+    private static String describeFailure(String service, Throwable error) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof TimeoutException) {
+            return "Service timed out: " + service;
+        }
+        return "Service failed: " + service;
     }
 }
 
 // Main class to demonstrate the API Gateway pattern
 public class ApiGatewayPattern {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            RateLimiterBenchmark.run();
+            return;
+        }
+
         // Create an instance of the API Gateway
         ApiGateway apiGateway = new ApiGateway();
 
@@ -72,5 +1047,67 @@ public class ApiGatewayPattern {
 
         String unknownResponse = apiGateway.handleRequest("unknown", "Unknown request");
         System.out.println(unknownResponse);
+
+        // Handle a request asynchronously, without blocking on the backend
+        apiGateway.handleRequestAsync("user", "Async user request").thenAccept(System.out::println).join();
+
+        // A slow service only costs its own timeout, not the caller's thread
+        apiGateway.registerAsyncService("inventory", request -> CompletableFuture.supplyAsync(() -> {
+            try {
+                Thread.sleep(1000); // Simulate a slow backend
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "Response from InventoryService: " + request;
+        }), Duration.ofMillis(200));
+
+        // Fan one request out to several services in parallel and aggregate the responses
+        Map<String, String> responses = apiGateway
+                .fanOutAsync(List.of("user", "product", "inventory"), "Dashboard request").join();
+        responses.forEach((service, response) -> System.out.println(service + " -> " + response));
+
+        // A burst of 100 requests for 10 distinct items is coalesced and batched into a few backend calls
+        CatalogService catalogService = new CatalogService();
+        apiGateway.registerService("catalog", catalogService);
+        apiGateway.enableBatching("catalog", Duration.ofMillis(10), 50);
+        List<CompletableFuture<String>> burst = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            burst.add(apiGateway.handleRequestAsync("catalog", "item-" + (i % 10)));
+        }
+        CompletableFuture.allOf(burst.toArray(new CompletableFuture<?>[0])).join();
+        System.out.println(burst.get(0).join() + " (100 requests, "
+                + catalogService.getBackendCalls() + " backend call(s))");
+
+        // Repeated reads are served from the response cache without touching the backend
+        CachingBackendService userCache = apiGateway.enableCaching("user", Duration.ofSeconds(30),
+                Duration.ofSeconds(10), 1 << 20);
+        for (int i = 0; i < 5; i++) {
+            apiGateway.handleRequestAsync("user", "Profile request").join();
+        }
+        System.out.println("User cache: " + userCache.getStats());
+
+        // Route by path, method and headers, then hot-swap the route table without locks
+        apiGateway.updateRoutes(new RouteTable.Builder()
+                .route("/api/v1/users/**", "user")
+                .route("GET", "/api/v2/users/*", Map.of("X-Beta", "true"), "catalog")
+                .route("/api/*/products/**", "product")
+                .build());
+        System.out.println(apiGateway.handleHttpRequestAsync("GET", "/api/v1/users/42/orders", Map.of(),
+                "Orders of user 42").join());
+        System.out.println(apiGateway.handleHttpRequestAsync("GET", "/api/v2/users/42", Map.of("X-Beta", "true"),
+                "Beta user 42").join());
+        System.out.println(apiGateway.handleHttpRequestAsync("GET", "/api/v2/users/42", Map.of(),
+                "User 42").join());
+        System.out.println(apiGateway.handleHttpRequestAsync("POST", "/api/v3/products/7", Map.of(),
+                "Product 7").join());
+
+        // A noisy client is rejected at the gateway once it exhausts its burst, whichever way it calls
+        apiGateway.setRouteRateLimit("product", 5, 3, 100_000);
+        for (int i = 0; i < 5; i++) {
+            System.out.println("noisy-client #" + (i + 1) + ": "
+                    + apiGateway.handleRequestAsync("noisy-client", "product", "Product request").join());
+        }
+        System.out.println("noisy-client (blocking call): "
+                + apiGateway.handleRequest("noisy-client", "product", "Product request"));
     }
 }
\ No newline at end of file
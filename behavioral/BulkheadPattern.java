@@ -1,4 +1,3 @@
-
 /**
  * The Bulkhead pattern is a design pattern used in distributed systems to improve fault isolation and
  * resilience by limiting the impact of failures in one part of the system on other parts. It's named
@@ -10,42 +9,773 @@
  * @since 03/05/2024
  */
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Outcome of offering a task to a bulkhead
+enum BulkheadResult {
+    ACCEPTED, // The task was admitted and has run or will run
+    REJECTED // The bulkhead was saturated for longer than the maximum wait
+}
+
+// BulkheadConfig class holding the limits of a bulkhead
+class BulkheadConfig {
+    // Ways a bulkhead can run the tasks it admits
+    enum Type {
+        THREAD_POOL, // Tasks run on the bulkhead's own threads, waiting in a bounded queue
+        SEMAPHORE, // Tasks run on the caller's thread, bounded by permits only
+        VIRTUAL_THREAD // Each task gets its own virtual thread, bounded by permits only
+    }
+
+    private Type type;
+    private int maxConcurrentCalls;
+    private int queueCapacity;
+    private long maxWaitMillis;
+
+    // Private constructor to force construction through the builder
+    private BulkheadConfig() {
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    // Builder class for building BulkheadConfig objects
+    public static class Builder {
+        private Type type = Type.THREAD_POOL;
+        private int maxConcurrentCalls = 10;
+        private int queueCapacity = 100;
+        private long maxWaitMillis = 0; // Reject immediately when saturated
+
+        public Builder type(Type type) {
+            this.type = type;
+            return this;
+        }
+
+        public Builder maxConcurrentCalls(int maxConcurrentCalls) {
+            this.maxConcurrentCalls = maxConcurrentCalls;
+            return this;
+        }
+
+        public Builder queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder maxWaitMillis(long maxWaitMillis) {
+            this.maxWaitMillis = maxWaitMillis;
+            return this;
+        }
+
+        // Build method to validate the settings and construct the final object
+        public BulkheadConfig build() {
+            if (maxConcurrentCalls <= 0 || queueCapacity < 0 || maxWaitMillis < 0) {
+                throw new IllegalArgumentException("Invalid bulkhead limits");
+            }
+            BulkheadConfig config = new BulkheadConfig();
+            config.type = this.type;
+            config.maxConcurrentCalls = this.maxConcurrentCalls;
+            config.queueCapacity = this.queueCapacity;
+            config.maxWaitMillis = this.maxWaitMillis;
+            return config;
+        }
+    }
+}
+
+// LatencyHistogram class recording durations into lock-free log-linear buckets (HdrHistogram style):
+// each power of two is split into 8 sub-buckets, so any recorded value is off by at most 12.5%
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    // Method to record one duration in nanoseconds
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        totalNanos.add(value);
+    }
+
+    // Method to get the number of recorded durations
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    // Method to get the mean of the recorded durations in nanoseconds
+    public double getMeanNanos() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : totalNanos.sum() / (double) count;
+    }
+
+    // Method to get the duration at the given percentile (0-100) in nanoseconds
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return valueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    // Method to map a value onto its bucket index
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Method to map a bucket index back onto the lowest value it holds
+    private static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
+
+// BulkheadMetrics class collecting saturation counters and latency histograms with minimal contention
+class BulkheadMetrics {
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram executionTime = new LatencyHistogram();
+
+    public void onRejected() {
+        rejected.increment();
+    }
+
+    public void onAdmitted() {
+        accepted.increment();
+        queued.increment();
+    }
+
+    // Method to record that an admitted task left the queue without ever running
+    public void onAbandoned() {
+        queued.decrement();
+    }
+
+    // Method to record that a task started, returning its start time
+    public long onStart(long calledAt) {
+        long startedAt = System.nanoTime();
+        queued.decrement();
+        active.increment();
+        queueWait.record(startedAt - calledAt);
+        return startedAt;
+    }
+
+    public void onFinish(long startedAt, boolean failure) {
+        executionTime.record(System.nanoTime() - startedAt);
+        active.decrement();
+        if (failure) {
+            failed.increment();
+        } else {
+            completed.increment();
+        }
+    }
+
+    public void onTimeout() {
+        timedOut.increment();
+    }
+
+    // Method to capture the current values into an immutable snapshot
+    public Snapshot snapshot(int availablePermits) {
+        return new Snapshot(this, availablePermits);
+    }
+
+    // Immutable point-in-time view of the metrics
+    static final class Snapshot {
+        private final int availablePermits;
+        private final long active;
+        private final long queued;
+        private final long accepted;
+        private final long rejected;
+        private final long completed;
+        private final long failed;
+        private final long timedOut;
+        private final long queueWaitP50Nanos;
+        private final long queueWaitP99Nanos;
+        private final long executionP50Nanos;
+        private final long executionP99Nanos;
+        private final double executionMeanNanos;
+
+        private Snapshot(BulkheadMetrics metrics, int availablePermits) {
+            this.availablePermits = availablePermits;
+            this.active = metrics.active.sum();
+            this.queued = metrics.queued.sum();
+            this.accepted = metrics.accepted.sum();
+            this.rejected = metrics.rejected.sum();
+            this.completed = metrics.completed.sum();
+            this.failed = metrics.failed.sum();
+            this.timedOut = metrics.timedOut.sum();
+            this.queueWaitP50Nanos = metrics.queueWait.getValueAtPercentile(50);
+            this.queueWaitP99Nanos = metrics.queueWait.getValueAtPercentile(99);
+            this.executionP50Nanos = metrics.executionTime.getValueAtPercentile(50);
+            this.executionP99Nanos = metrics.executionTime.getValueAtPercentile(99);
+            this.executionMeanNanos = metrics.executionTime.getMeanNanos();
+        }
+
+        public int getAvailablePermits() {
+            return availablePermits;
+        }
+
+        public long getActive() {
+            return active;
+        }
+
+        public long getQueued() {
+            return queued;
+        }
+
+        public long getAccepted() {
+            return accepted;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getTimedOut() {
+            return timedOut;
+        }
+
+        public long getQueueWaitP50Nanos() {
+            return queueWaitP50Nanos;
+        }
+
+        public long getQueueWaitP99Nanos() {
+            return queueWaitP99Nanos;
+        }
+
+        public long getExecutionP50Nanos() {
+            return executionP50Nanos;
+        }
+
+        public long getExecutionP99Nanos() {
+            return executionP99Nanos;
+        }
+
+        public double getExecutionMeanNanos() {
+            return executionMeanNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("active=%d queued=%d available=%d accepted=%d rejected=%d completed=%d failed=%d "
+                    + "timedOut=%d queueWait(p50=%.2fms p99=%.2fms) execution(p50=%.2fms p99=%.2fms)",
+                    active, queued, availablePermits, accepted, rejected, completed, failed, timedOut,
+                    queueWaitP50Nanos / 1e6, queueWaitP99Nanos / 1e6, executionP50Nanos / 1e6,
+                    executionP99Nanos / 1e6);
+        }
+    }
+}
+
+// BulkheadMBean class publishing a bulkhead's metrics snapshot as read-only JMX attributes
+class BulkheadMBean implements DynamicMBean {
+    private static final String[] ATTRIBUTES = { "AvailablePermits", "Active", "Queued", "Accepted", "Rejected",
+            "Completed", "Failed", "TimedOut", "QueueWaitP50Nanos", "QueueWaitP99Nanos", "ExecutionP50Nanos",
+            "ExecutionP99Nanos" };
+
+    private final ResourceBulkhead bulkhead;
+
+    public BulkheadMBean(ResourceBulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        return read(bulkhead.getMetrics(), attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        BulkheadMetrics.Snapshot snapshot = bulkhead.getMetrics();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, read(snapshot, attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Unknown attributes are left out, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Bulkhead metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[ATTRIBUTES.length];
+        for (int i = 0; i < ATTRIBUTES.length; i++) {
+            String type = i == 0 ? "int" : "long";
+            attributes[i] = new MBeanAttributeInfo(ATTRIBUTES[i], type, ATTRIBUTES[i], true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Resource bulkhead metrics", attributes, null, null, null);
+    }
+
+    // Method to read one attribute from a snapshot
+    private static Object read(BulkheadMetrics.Snapshot snapshot, String attribute)
+            throws AttributeNotFoundException {
+        switch (attribute) {
+            case "AvailablePermits":
+                return snapshot.getAvailablePermits();
+            case "Active":
+                return snapshot.getActive();
+            case "Queued":
+                return snapshot.getQueued();
+            case "Accepted":
+                return snapshot.getAccepted();
+            case "Rejected":
+                return snapshot.getRejected();
+            case "Completed":
+                return snapshot.getCompleted();
+            case "Failed":
+                return snapshot.getFailed();
+            case "TimedOut":
+                return snapshot.getTimedOut();
+            case "QueueWaitP50Nanos":
+                return snapshot.getQueueWaitP50Nanos();
+            case "QueueWaitP99Nanos":
+                return snapshot.getQueueWaitP99Nanos();
+            case "ExecutionP50Nanos":
+                return snapshot.getExecutionP50Nanos();
+            case "ExecutionP99Nanos":
+                return snapshot.getExecutionP99Nanos();
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+}
 
 // Bulkhead class managing resources and isolating failures
 class ResourceBulkhead {
-    private ExecutorService threadPool;
+    private final BulkheadConfig config;
+    private final ExecutorService threadPool; // Null in semaphore mode, virtual threads in virtual mode
+    private final Semaphore permits; // Running plus queued tasks may never exceed these permits
+    private final BulkheadMetrics metrics = new BulkheadMetrics();
 
-    // Constructor to initialize the bulkhead with a fixed-size thread pool
+    // Lifecycle phases of a submitted task, used to tell a queued task from a running one on timeout
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int FINISHED = 2;
+
+    // Submission class for a submitted task handed to the pool, so that a task still queued when the pool is
+    // stopped can be recognized among those shutdownNow returns and its future failed
+    private static final class Submission extends FutureTask<Void> {
+        private final CompletableFuture<?> result;
+
+        Submission(Runnable body, CompletableFuture<?> result) {
+            super(body, null);
+            this.result = result;
+        }
+
+        void reject() {
+            result.completeExceptionally(new RejectedExecutionException("Bulkhead shut down before the task ran"));
+        }
+    }
+
+    // Constructor to initialize the bulkhead with a fixed-size thread pool and a bounded queue
     public ResourceBulkhead(int poolSize) {
-        // Create a fixed-size thread pool for the bulkhead
-        threadPool = Executors.newFixedThreadPool(poolSize);
+        this(new BulkheadConfig.Builder().maxConcurrentCalls(poolSize).build());
+    }
+
+    // Constructor to initialize the bulkhead from a configuration
+    public ResourceBulkhead(BulkheadConfig config) {
+        this.config = config;
+        if (config.getType() == BulkheadConfig.Type.THREAD_POOL) {
+            // Create a fixed-size thread pool with a bounded queue. The permits are the real limit; the
+            // queue has slack for workers that released their permit but have not yet polled again
+            int poolSize = config.getMaxConcurrentCalls();
+            threadPool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(poolSize + config.getQueueCapacity()),
+                    new ThreadPoolExecutor.AbortPolicy());
+            permits = new Semaphore(poolSize + config.getQueueCapacity());
+        } else if (config.getType() == BulkheadConfig.Type.VIRTUAL_THREAD) {
+            // No pool to size and no queue: blocking tasks park cheaply, so only permits limit them
+            threadPool = newVirtualThreadPerTaskExecutor();
+            permits = new Semaphore(config.getMaxConcurrentCalls());
+        } else {
+            threadPool = null;
+            permits = new Semaphore(config.getMaxConcurrentCalls());
+        }
+    }
+
+    // Method to create a virtual-thread-per-task executor, looked up reflectively so this file still
+    // compiles on JDKs older than 21; there it degrades to a cached pool that is still permit-bounded
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
     }
 
     // Method to execute a task within the bulkhead
-    public void executeTask(Runnable task) {
-        // Submit the task to the thread pool for execution
-        threadPool.submit(task);
+    public BulkheadResult executeTask(Runnable task) {
+        long calledAt = System.nanoTime();
+        if (!acquirePermit()) {
+            metrics.onRejected();
+            return BulkheadResult.REJECTED;
+        }
+        metrics.onAdmitted();
+
+        if (threadPool == null) {
+            // Semaphore mode: run the task on the caller's thread
+            long startedAt = metrics.onStart(calledAt);
+            boolean failed = true;
+            try {
+                task.run();
+                failed = false;
+            } finally {
+                metrics.onFinish(startedAt, failed);
+                permits.release();
+            }
+            return BulkheadResult.ACCEPTED;
+        }
+
+        // Submit the task to the executor; in thread-pool mode the permit guarantees queue space
+        try {
+            threadPool.execute(() -> {
+                long startedAt = metrics.onStart(calledAt);
+                boolean failed = true;
+                try {
+                    task.run();
+                    failed = false;
+                } finally {
+                    metrics.onFinish(startedAt, failed);
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The bulkhead is shutting down
+            metrics.onAbandoned();
+            metrics.onRejected();
+            permits.release();
+            return BulkheadResult.REJECTED;
+        }
+        return BulkheadResult.ACCEPTED;
+    }
+
+    // Method to submit a task whose result, failure or rejection is reported through the future
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return submit(task, null);
+    }
+
+    // Method to submit a task that is interrupted, and its slot freed, if it runs past the timeout
+    public <T> CompletableFuture<T> submit(Callable<T> task, Duration timeout) {
+        long calledAt = System.nanoTime();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!acquirePermit()) {
+            metrics.onRejected();
+            result.completeExceptionally(new RejectedExecutionException("Bulkhead is full"));
+            return result;
+        }
+        metrics.onAdmitted();
+
+        if (threadPool == null) {
+            // Semaphore mode runs on the caller's thread, so the timeout cannot pre-empt the task
+            long startedAt = metrics.onStart(calledAt);
+            try {
+                result.complete(task.call());
+                metrics.onFinish(startedAt, false);
+            } catch (Throwable e) {
+                // Errors too, or the future would never complete and the active gauge would stay raised
+                metrics.onFinish(startedAt, true);
+                result.completeExceptionally(e);
+            } finally {
+                permits.release();
+            }
+            return result;
+        }
+
+        AtomicInteger phase = new AtomicInteger(QUEUED);
+        Submission execution = new Submission(() -> {
+                if (!phase.compareAndSet(QUEUED, RUNNING)) {
+                    return; // Timed out or cancelled before it was picked up
+                }
+                long startedAt = metrics.onStart(calledAt);
+                try {
+                    T value = task.call();
+                    phase.set(FINISHED);
+                    metrics.onFinish(startedAt, false);
+                    result.complete(value);
+                } catch (Throwable e) {
+                    // The FutureTask would swallow an Error, leaving the future and its permit stuck
+                    phase.set(FINISHED);
+                    metrics.onFinish(startedAt, true);
+                    result.completeExceptionally(e);
+                }
+            }, result);
+        try {
+            threadPool.execute(execution);
+        } catch (RejectedExecutionException e) {
+            metrics.onAbandoned();
+            metrics.onRejected();
+            permits.release();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        // The slot is freed as soon as the future completes, whether the task finished, timed out or the
+        // caller cancelled it; in the latter two cases the stuck task is interrupted
+        result.whenComplete((value, error) -> {
+            if (error instanceof TimeoutException) {
+                metrics.onTimeout();
+            }
+            int previous = phase.getAndSet(FINISHED);
+            if (previous == QUEUED) {
+                metrics.onAbandoned();
+                execution.cancel(false);
+                if (threadPool instanceof ThreadPoolExecutor) {
+                    // Free its queue slot before the permit lets another task in
+                    ((ThreadPoolExecutor) threadPool).remove(execution);
+                }
+            } else if (previous == RUNNING) {
+                execution.cancel(true);
+            }
+            permits.release();
+        });
+        if (timeout != null) {
+            result.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    // Method to submit a batch of tasks and wait until every one has completed, failed or timed out
+    public <T> List<CompletableFuture<T>> invokeAll(List<? extends Callable<T>> tasks, Duration timeout)
+            throws InterruptedException {
+        List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(submit(task, timeout));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        } catch (ExecutionException e) {
+            // Individual failures are reported through their own futures
+        } catch (InterruptedException e) {
+            // Give up on the batch: cancelling frees the permits and interrupts the tasks still running
+            for (CompletableFuture<T> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+        return futures;
+    }
+
+    // Method to get the number of tasks that could still be admitted right now
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    // Method to take a consistent-enough point-in-time view of the bulkhead's metrics
+    public BulkheadMetrics.Snapshot getMetrics() {
+        return metrics.snapshot(permits.availablePermits());
+    }
+
+    // Method to expose the bulkhead's metrics over JMX under the given name
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("bulkhead:type=ResourceBulkhead,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new BulkheadMBean(this), objectName);
+        return objectName;
     }
 
     // Method to shut down the bulkhead and release resources
     public void shutdown() {
         // Shut down the thread pool when no longer needed
+        if (threadPool != null) {
+            threadPool.shutdown();
+        }
+    }
+
+    // Method to stop accepting tasks, let running and queued ones drain for up to the grace period,
+    // then interrupt whatever is left; returns whether every task finished. Tasks that were still queued
+    // never run: their futures fail with RejectedExecutionException and their permits are released
+    public boolean shutdown(Duration gracePeriod) throws InterruptedException {
+        if (threadPool == null) {
+            return true;
+        }
         threadPool.shutdown();
+        if (threadPool.awaitTermination(gracePeriod.toMillis(), TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        List<Runnable> dropped = threadPool.shutdownNow();
+        for (Runnable task : dropped) {
+            if (task instanceof Submission) {
+                ((Submission) task).reject(); // Its future releases the permit
+            } else {
+                // A task from executeTask, whose caller has no future to tell
+                metrics.onAbandoned();
+                permits.release();
+            }
+        }
+        return threadPool.awaitTermination(gracePeriod.toMillis(), TimeUnit.MILLISECONDS) && dropped.isEmpty();
+    }
+
+    // Method to take a permit, waiting at most the configured time
+    private boolean acquirePermit() {
+        if (config.getMaxWaitMillis() == 0) {
+            // Fast path: never block the caller when the bulkhead is saturated
+            return permits.tryAcquire();
+        }
+        try {
+            return permits.tryAcquire(config.getMaxWaitMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
+
+// BulkheadBenchmark class comparing fixed-pool and virtual-thread bulkheads on blocking tasks
+class BulkheadBenchmark {
+    private static final int TASKS = 10_000;
+    private static final int TASK_SLEEP_MILLIS = 20;
+
+    // Method to run the same blocking workload through a bulkhead and report throughput and p99 latency
+    public static void run(String name, BulkheadConfig config) throws InterruptedException {
+        ResourceBulkhead bulkhead = new ResourceBulkhead(config);
+        long[] latencies = new long[TASKS];
+        CountDownLatch done = new CountDownLatch(TASKS);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < TASKS; i++) {
+            int taskId = i;
+            long submittedAt = System.nanoTime();
+            BulkheadResult result = bulkhead.executeTask(() -> {
+                try {
+                    Thread.sleep(TASK_SLEEP_MILLIS); // Simulate blocking I/O
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latencies[taskId] = System.nanoTime() - submittedAt;
+                done.countDown();
+            });
+            if (result == BulkheadResult.REJECTED) {
+                throw new IllegalStateException("Benchmark bulkhead rejected task " + taskId);
+            }
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        bulkhead.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("%s: %.0f tasks/sec, p99 latency %.1f ms%n", name, TASKS / seconds,
+                latencies[(int) (TASKS * 0.99) - 1] / 1e6);
+        System.out.println("  " + bulkhead.getMetrics());
     }
 }
 
 // Main class to demonstrate the Bulkhead pattern
 public class BulkheadPattern {
-    public static void main(String[] args) {
-        // Create a bulkhead with a pool size of 3 threads
-        ResourceBulkhead bulkhead = new ResourceBulkhead(3);
+    public static void main(String[] args) throws InterruptedException, JMException {
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            BulkheadBenchmark.run("Fixed pool (200 threads)", new BulkheadConfig.Builder()
+                    .maxConcurrentCalls(200)
+                    .queueCapacity(10_000)
+                    .build());
+            BulkheadBenchmark.run("Virtual threads (10000 permits)", new BulkheadConfig.Builder()
+                    .type(BulkheadConfig.Type.VIRTUAL_THREAD)
+                    .maxConcurrentCalls(10_000)
+                    .build());
+            return;
+        }
+
+        // Create a bulkhead with 3 threads and room for 1 queued task
+        ResourceBulkhead bulkhead = new ResourceBulkhead(new BulkheadConfig.Builder()
+                .maxConcurrentCalls(3)
+                .queueCapacity(1)
+                .build());
 
         // Simulate executing tasks within the bulkhead
         for (int i = 0; i < 5; i++) {
             int taskId = i + 1;
-            bulkhead.executeTask(() -> {
+            BulkheadResult result = bulkhead.executeTask(() -> {
                 // Simulate task execution
                 System.out.println("Task " + taskId + " executing in thread: " + Thread.currentThread().getName());
                 // Simulate task execution time
@@ -56,9 +786,48 @@ public class BulkheadPattern {
                 }
                 System.out.println("Task " + taskId + " completed");
             });
+            if (result == BulkheadResult.REJECTED) {
+                System.out.println("Task " + taskId + " rejected: bulkhead is full");
+            }
         }
 
         // Shut down the bulkhead after tasks are completed
         bulkhead.shutdown();
+
+        // A semaphore bulkhead runs admitted work on the caller's thread
+        ResourceBulkhead callerRunsBulkhead = new ResourceBulkhead(new BulkheadConfig.Builder()
+                .type(BulkheadConfig.Type.SEMAPHORE)
+                .maxConcurrentCalls(2)
+                .build());
+        BulkheadResult result = callerRunsBulkhead.executeTask(
+                () -> System.out.println("Semaphore task executing in thread: " + Thread.currentThread().getName()));
+        System.out.println("Semaphore task " + result);
+
+        // A virtual-thread bulkhead limits concurrency by permits rather than by pool size
+        ResourceBulkhead virtualBulkhead = new ResourceBulkhead(new BulkheadConfig.Builder()
+                .type(BulkheadConfig.Type.VIRTUAL_THREAD)
+                .maxConcurrentCalls(1000)
+                .build());
+        virtualBulkhead.executeTask(
+                () -> System.out.println("Virtual task executing in thread: " + Thread.currentThread()));
+        virtualBulkhead.shutdown();
+
+        // Submitted tasks report their result through a future and are interrupted past their timeout
+        ResourceBulkhead futureBulkhead = new ResourceBulkhead(2);
+        ObjectName mbeanName = futureBulkhead.registerMBean("future-bulkhead");
+        List<Callable<String>> calls = List.of(
+                () -> "Fast call result",
+                () -> {
+                    Thread.sleep(5000); // Simulate a stuck downstream call
+                    return "Slow call result";
+                });
+        List<CompletableFuture<String>> results = futureBulkhead.invokeAll(calls, Duration.ofMillis(500));
+        for (CompletableFuture<String> future : results) {
+            System.out.println(future.handle((value, error) -> error == null ? value : "Failed: " + error).join());
+        }
+        System.out.println("Metrics: " + futureBulkhead.getMetrics());
+        System.out.println("Timed out tasks via JMX: "
+                + ManagementFactory.getPlatformMBeanServer().getAttribute(mbeanName, "TimedOut"));
+        System.out.println("Drained cleanly: " + futureBulkhead.shutdown(Duration.ofSeconds(1)));
     }
-}
\ No newline at end of file
+}
@@ -10,65 +10,596 @@
  * @since 02/05/2024
  */
 
-import java.util.Random;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// States a circuit breaker can be in
+enum CircuitState {
+    CLOSED, // Requests flow through and outcomes are recorded
+    OPEN, // Requests are rejected until the cooldown period has elapsed
+    HALF_OPEN // Trial requests are let through to check whether the service has recovered
+}
+
+// SlidingWindow interface recording call outcomes used for the trip decision
+interface SlidingWindow {
+    // Method to record the outcome of a call and whether it exceeded the slow-call duration
+    void record(boolean success, boolean slow);
+
+    // Method to get the number of calls currently in the window
+    int getTotalCalls();
+
+    // Method to get the failure rate (0-100) of the calls currently in the window
+    float getFailureRate();
+
+    // Method to get the slow-call rate (0-100) of the calls currently in the window
+    float getSlowCallRate();
+
+    // Method to forget every recorded outcome
+    void reset();
+}
+
+// CountBasedSlidingWindow keeps the outcomes of the last N calls in a lock-free ring buffer
+class CountBasedSlidingWindow implements SlidingWindow {
+    private static final int EMPTY = 0;
+    private static final int RECORDED = 1;
+    private static final int FAILED = 2;
+    private static final int SLOW = 4;
+
+    private final AtomicIntegerArray outcomes;
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicInteger totalCalls = new AtomicInteger();
+    private final AtomicInteger failedCalls = new AtomicInteger();
+    private final AtomicInteger slowCalls = new AtomicInteger();
+
+    public CountBasedSlidingWindow(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Window size must be positive: " + size);
+        }
+        outcomes = new AtomicIntegerArray(size);
+    }
+
+    @Override
+    public void record(boolean success, boolean slow) {
+        // Claim the next slot and swap in the new outcome, adjusting counters by what was evicted
+        int index = (int) (cursor.getAndIncrement() % outcomes.length());
+        int outcome = RECORDED | (success ? 0 : FAILED) | (slow ? SLOW : 0);
+        evict(outcomes.getAndSet(index, outcome));
+        totalCalls.incrementAndGet();
+        if ((outcome & FAILED) != 0) {
+            failedCalls.incrementAndGet();
+        }
+        if ((outcome & SLOW) != 0) {
+            slowCalls.incrementAndGet();
+        }
+    }
+
+    @Override
+    public int getTotalCalls() {
+        return totalCalls.get();
+    }
+
+    @Override
+    public float getFailureRate() {
+        int total = totalCalls.get();
+        return total == 0 ? 0f : failedCalls.get() * 100f / total;
+    }
+
+    @Override
+    public float getSlowCallRate() {
+        int total = totalCalls.get();
+        return total == 0 ? 0f : slowCalls.get() * 100f / total;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < outcomes.length(); i++) {
+            evict(outcomes.getAndSet(i, EMPTY));
+        }
+    }
+
+    // Method to remove an evicted outcome from the running counters
+    private void evict(int outcome) {
+        if (outcome == EMPTY) {
+            return;
+        }
+        totalCalls.decrementAndGet();
+        if ((outcome & FAILED) != 0) {
+            failedCalls.decrementAndGet();
+        }
+        if ((outcome & SLOW) != 0) {
+            slowCalls.decrementAndGet();
+        }
+    }
+}
+
+// TimeBasedSlidingWindow keeps the outcomes of the last N seconds in per-second buckets
+class TimeBasedSlidingWindow implements SlidingWindow {
+    private static final long BUCKET_MILLIS = 1000;
+    private static final long RESETTING = -1; // Epoch of a bucket whose counters are being cleared
+
+    private final AtomicLongArray bucketEpochs;
+    private final AtomicIntegerArray calls;
+    private final AtomicIntegerArray failures;
+    private final AtomicIntegerArray slowCalls;
+
+    public TimeBasedSlidingWindow(int seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Window size must be positive: " + seconds);
+        }
+        bucketEpochs = new AtomicLongArray(seconds);
+        calls = new AtomicIntegerArray(seconds);
+        failures = new AtomicIntegerArray(seconds);
+        slowCalls = new AtomicIntegerArray(seconds);
+    }
+
+    @Override
+    public void record(boolean success, boolean slow) {
+        long epoch = System.currentTimeMillis() / BUCKET_MILLIS;
+        int index = (int) (epoch % bucketEpochs.length());
+        while (true) {
+            long bucketEpoch = bucketEpochs.get(index);
+            if (bucketEpoch == epoch) {
+                break;
+            }
+            if (bucketEpoch > epoch) {
+                return; // The bucket has already moved past this outcome's second
+            }
+            // The first thread to see a stale bucket claims it and clears its counters before publishing the
+            // new epoch, so no increment made under that epoch can be wiped
+            if (bucketEpoch != RESETTING && bucketEpochs.compareAndSet(index, bucketEpoch, RESETTING)) {
+                calls.set(index, 0);
+                failures.set(index, 0);
+                slowCalls.set(index, 0);
+                bucketEpochs.set(index, epoch);
+                break;
+            }
+            Thread.onSpinWait();
+        }
+        calls.incrementAndGet(index);
+        if (!success) {
+            failures.incrementAndGet(index);
+        }
+        if (slow) {
+            slowCalls.incrementAndGet(index);
+        }
+    }
+
+    @Override
+    public int getTotalCalls() {
+        return sumLiveBuckets(calls);
+    }
+
+    @Override
+    public float getFailureRate() {
+        int total = sumLiveBuckets(calls);
+        return total == 0 ? 0f : sumLiveBuckets(failures) * 100f / total;
+    }
+
+    @Override
+    public float getSlowCallRate() {
+        int total = sumLiveBuckets(calls);
+        return total == 0 ? 0f : sumLiveBuckets(slowCalls) * 100f / total;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < bucketEpochs.length(); i++) {
+            bucketEpochs.set(i, 0);
+            calls.set(i, 0);
+            failures.set(i, 0);
+            slowCalls.set(i, 0);
+        }
+    }
+
+    // Method to sum a counter over the buckets that still fall inside the window
+    private int sumLiveBuckets(AtomicIntegerArray counter) {
+        long oldest = System.currentTimeMillis() / BUCKET_MILLIS - bucketEpochs.length();
+        int sum = 0;
+        for (int i = 0; i < bucketEpochs.length(); i++) {
+            if (bucketEpochs.get(i) > oldest) {
+                sum += counter.get(i);
+            }
+        }
+        return sum;
+    }
+}
+
+// CircuitBreakerConfig class holding the tunable policy of a circuit breaker
+class CircuitBreakerConfig {
+    // Types of sliding window the breaker can aggregate outcomes over
+    enum WindowType {
+        COUNT_BASED, TIME_BASED
+    }
+
+    private float failureRateThreshold;
+    private float slowCallRateThreshold;
+    private long slowCallDurationMillis;
+    private int minimumNumberOfCalls;
+    private WindowType windowType;
+    private int windowSize;
+    private long waitDurationInOpenStateMillis;
+    private long maxWaitDurationInOpenStateMillis;
+    private double backoffMultiplier;
+    private int permittedCallsInHalfOpenState;
+
+    // Private constructor to force construction through the builder
+    private CircuitBreakerConfig() {
+    }
+
+    // Method to get a configuration with every setting left at its default
+    public static CircuitBreakerConfig ofDefaults() {
+        return new Builder().build();
+    }
+
+    public float getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public float getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    public long getSlowCallDurationMillis() {
+        return slowCallDurationMillis;
+    }
+
+    public int getMinimumNumberOfCalls() {
+        return minimumNumberOfCalls;
+    }
+
+    public long getWaitDurationInOpenStateMillis() {
+        return waitDurationInOpenStateMillis;
+    }
+
+    public long getMaxWaitDurationInOpenStateMillis() {
+        return maxWaitDurationInOpenStateMillis;
+    }
+
+    public double getBackoffMultiplier() {
+        return backoffMultiplier;
+    }
+
+    public int getPermittedCallsInHalfOpenState() {
+        return permittedCallsInHalfOpenState;
+    }
+
+    // Method to create a fresh sliding window matching this configuration
+    public SlidingWindow newSlidingWindow() {
+        return windowType == WindowType.TIME_BASED
+                ? new TimeBasedSlidingWindow(windowSize)
+                : new CountBasedSlidingWindow(windowSize);
+    }
+
+    // Builder class for building CircuitBreakerConfig objects
+    public static class Builder {
+        private float failureRateThreshold = 50f; // Trip at 50% failures
+        private float slowCallRateThreshold = 100f; // Slow calls alone never trip by default
+        private long slowCallDurationMillis = 60000; // 60 seconds
+        private int minimumNumberOfCalls = 4; // Calls needed before the rates are trusted
+        private WindowType windowType = WindowType.COUNT_BASED;
+        private int windowSize = 10;
+        private long waitDurationInOpenStateMillis = 5000; // 5 seconds
+        private long maxWaitDurationInOpenStateMillis = 60000; // 60 seconds
+        private double backoffMultiplier = 2.0;
+        private int permittedCallsInHalfOpenState = 3;
+
+        public Builder failureRateThreshold(float failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        public Builder slowCallRateThreshold(float slowCallRateThreshold) {
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            return this;
+        }
+
+        public Builder slowCallDurationMillis(long slowCallDurationMillis) {
+            this.slowCallDurationMillis = slowCallDurationMillis;
+            return this;
+        }
+
+        public Builder minimumNumberOfCalls(int minimumNumberOfCalls) {
+            this.minimumNumberOfCalls = minimumNumberOfCalls;
+            return this;
+        }
+
+        public Builder countBasedWindow(int calls) {
+            this.windowType = WindowType.COUNT_BASED;
+            this.windowSize = calls;
+            return this;
+        }
+
+        public Builder timeBasedWindow(int seconds) {
+            this.windowType = WindowType.TIME_BASED;
+            this.windowSize = seconds;
+            return this;
+        }
+
+        public Builder waitDurationInOpenStateMillis(long waitDurationInOpenStateMillis) {
+            this.waitDurationInOpenStateMillis = waitDurationInOpenStateMillis;
+            return this;
+        }
+
+        public Builder maxWaitDurationInOpenStateMillis(long maxWaitDurationInOpenStateMillis) {
+            this.maxWaitDurationInOpenStateMillis = maxWaitDurationInOpenStateMillis;
+            return this;
+        }
+
+        public Builder backoffMultiplier(double backoffMultiplier) {
+            this.backoffMultiplier = backoffMultiplier;
+            return this;
+        }
+
+        public Builder permittedCallsInHalfOpenState(int permittedCallsInHalfOpenState) {
+            this.permittedCallsInHalfOpenState = permittedCallsInHalfOpenState;
+            return this;
+        }
+
+        // Build method to validate the settings and construct the final object
+        public CircuitBreakerConfig build() {
+            if (failureRateThreshold <= 0 || failureRateThreshold > 100
+                    || slowCallRateThreshold <= 0 || slowCallRateThreshold > 100) {
+                throw new IllegalArgumentException("Rate thresholds must be in (0, 100]");
+            }
+            if (minimumNumberOfCalls <= 0 || windowSize <= 0 || permittedCallsInHalfOpenState <= 0) {
+                throw new IllegalArgumentException("Call counts and window size must be positive");
+            }
+            if (waitDurationInOpenStateMillis <= 0
+                    || maxWaitDurationInOpenStateMillis < waitDurationInOpenStateMillis
+                    || backoffMultiplier < 1.0) {
+                throw new IllegalArgumentException("Invalid open-state wait duration or backoff");
+            }
+            CircuitBreakerConfig config = new CircuitBreakerConfig();
+            config.failureRateThreshold = this.failureRateThreshold;
+            config.slowCallRateThreshold = this.slowCallRateThreshold;
+            config.slowCallDurationMillis = this.slowCallDurationMillis;
+            config.minimumNumberOfCalls = this.minimumNumberOfCalls;
+            config.windowType = this.windowType;
+            config.windowSize = this.windowSize;
+            config.waitDurationInOpenStateMillis = this.waitDurationInOpenStateMillis;
+            config.maxWaitDurationInOpenStateMillis = this.maxWaitDurationInOpenStateMillis;
+            config.backoffMultiplier = this.backoffMultiplier;
+            config.permittedCallsInHalfOpenState = this.permittedCallsInHalfOpenState;
+            return config;
+        }
+    }
+}
 
 // CircuitBreaker class implementing the Circuit Breaker pattern
 class CircuitBreaker {
-    private static final int FAILURE_THRESHOLD = 3;
-    private static final int COOLDOWN_PERIOD = 5000; // 5 seconds
-    private int consecutiveFailures = 0;
-    private long lastFailureTime = 0;
+    private final CircuitBreakerConfig config;
+    private final SlidingWindow slidingWindow;
+    private final AtomicReference<StateSnapshot> state;
+
+    // Immutable pairing of a state with its bookkeeping, swapped atomically as one unit
+    private static final class StateSnapshot {
+        final CircuitState state;
+        final long enteredAt;
+        final int consecutiveOpenings; // Drives the exponential backoff of the open-state wait
+        final long waitDurationMillis;
+        final AtomicInteger probePermits; // Probes still allowed through while half-open
+        final AtomicInteger probeSuccesses;
 
-    // Method to handle requests with circuit breaker logic
-    public String handleRequest() {
-        if (isCircuitOpen()) {
-            return "Fallback: Service unavailable";
+        StateSnapshot(CircuitState state, long enteredAt, int consecutiveOpenings, long waitDurationMillis,
+                int probePermits) {
+            this.state = state;
+            this.enteredAt = enteredAt;
+            this.consecutiveOpenings = consecutiveOpenings;
+            this.waitDurationMillis = waitDurationMillis;
+            this.probePermits = new AtomicInteger(probePermits);
+            this.probeSuccesses = new AtomicInteger();
         }
+    }
 
-        // Simulate calling the dependent service or resource
-        boolean success = callService();
-        // System.out.println(success);
+    // Constructor using the default configuration
+    public CircuitBreaker() {
+        this(CircuitBreakerConfig.ofDefaults());
+    }
 
-        if (!success) {
-            handleFailure();
-            return "Fallback: Service unavailable";
+    // Constructor to initialize the circuit breaker with a custom configuration
+    public CircuitBreaker(CircuitBreakerConfig config) {
+        this.config = config;
+        this.slidingWindow = config.newSlidingWindow();
+        this.state = new AtomicReference<>(new StateSnapshot(CircuitState.CLOSED, 0, 0, 0, 0));
+    }
+
+    // Method to run a call through the circuit breaker, falling back when rejected or failed
+    public <T> T execute(Callable<T> call, Supplier<T> fallback) {
+        StateSnapshot admittedUnder = acquirePermission();
+        if (admittedUnder == null) {
+            return fallback.get();
+        }
+
+        // Nothing on the success path allocates beyond what the wrapped call itself does
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            onResult(admittedUnder, true, isSlow(start));
+            return result;
+        } catch (Exception e) {
+            onResult(admittedUnder, false, isSlow(start));
+            return fallback.get();
+        } catch (Error e) {
+            // Not a case for the fallback, but still a failed call, so a half-open probe permit is resolved
+            onResult(admittedUnder, false, isSlow(start));
+            throw e;
+        }
+    }
+
+    // Method to get the current state of the circuit
+    public CircuitState getState() {
+        return state.get().state;
+    }
+
+    // Method to check whether a call started at the given time exceeded the slow-call duration
+    private boolean isSlow(long startNanos) {
+        return System.nanoTime() - startNanos >= config.getSlowCallDurationMillis() * 1_000_000;
+    }
+
+    // Method to decide whether a call may proceed, returning the state it was admitted under or null
+    private StateSnapshot acquirePermission() {
+        while (true) {
+            StateSnapshot current = state.get();
+            switch (current.state) {
+                case CLOSED:
+                    return current;
+                case OPEN:
+                    long now = System.currentTimeMillis();
+                    if (now - current.enteredAt < current.waitDurationMillis) {
+                        return null;
+                    }
+                    // Once the wait has elapsed exactly one thread moves the circuit to half-open
+                    state.compareAndSet(current, new StateSnapshot(CircuitState.HALF_OPEN, now,
+                            current.consecutiveOpenings, current.waitDurationMillis,
+                            config.getPermittedCallsInHalfOpenState()));
+                    break; // Re-read the state and compete for a probe permit
+                default:
+                    // Only a bounded number of probes reach the recovering service
+                    return tryAcquireProbe(current) ? current : null;
+            }
+        }
+    }
+
+    // Method to take one half-open probe permit without ever driving the counter negative
+    private boolean tryAcquireProbe(StateSnapshot halfOpen) {
+        int permits;
+        do {
+            permits = halfOpen.probePermits.get();
+            if (permits <= 0) {
+                return false;
+            }
+        } while (!halfOpen.probePermits.compareAndSet(permits, permits - 1));
+        return true;
+    }
+
+    // Method to record a call outcome and update circuit state
+    private void onResult(StateSnapshot admittedUnder, boolean success, boolean slow) {
+        if (admittedUnder.state == CircuitState.HALF_OPEN) {
+            if (!success || slow) {
+                // A single bad probe re-opens the circuit with a longer wait
+                open(admittedUnder, admittedUnder.consecutiveOpenings + 1);
+            } else if (admittedUnder.probeSuccesses.incrementAndGet() == config.getPermittedCallsInHalfOpenState()
+                    && state.compareAndSet(admittedUnder,
+                            new StateSnapshot(CircuitState.CLOSED, System.currentTimeMillis(), 0, 0, 0))) {
+                slidingWindow.reset();
+            }
+            return;
         }
 
-        return "Success";
+        slidingWindow.record(success, slow);
+        if (slidingWindow.getTotalCalls() >= config.getMinimumNumberOfCalls()
+                && (slidingWindow.getFailureRate() >= config.getFailureRateThreshold()
+                        || slidingWindow.getSlowCallRate() >= config.getSlowCallRateThreshold())) {
+            open(admittedUnder, 1);
+        }
     }
 
-    // Method to simulate calling the dependent service or resource
-    private boolean callService() {
-        // Simulate a random success/failure scenario
-        Random random = new Random();
-        return random.nextBoolean();
+    // Method to open the circuit if no other thread changed its state in the meantime
+    private void open(StateSnapshot expected, int consecutiveOpenings) {
+        double backoff = Math.pow(config.getBackoffMultiplier(), consecutiveOpenings - 1);
+        long waitDuration = (long) Math.min(config.getWaitDurationInOpenStateMillis() * backoff,
+                config.getMaxWaitDurationInOpenStateMillis());
+        state.compareAndSet(expected, new StateSnapshot(CircuitState.OPEN, System.currentTimeMillis(),
+                consecutiveOpenings, waitDuration, 0));
     }
+}
+
+// RemoteService class simulating the dependent service or resource
+class RemoteService implements Callable<String> {
+    private static final String RESPONSE = "Success";
 
-    // Method to check if the circuit is open
-    private boolean isCircuitOpen() {
-        if (consecutiveFailures >= FAILURE_THRESHOLD
-                && System.currentTimeMillis() - lastFailureTime < COOLDOWN_PERIOD) {
-            return true;
+    @Override
+    public String call() throws Exception {
+        // Simulate a random success/failure scenario without allocating a Random per call
+        if (ThreadLocalRandom.current().nextBoolean()) {
+            throw new Exception("Service call failed");
         }
-        return false;
+        return RESPONSE;
     }
+}
+
+// CircuitBreakerBenchmark class measuring throughput and allocation of the CLOSED-state path
+class CircuitBreakerBenchmark {
+    private static final int WARMUP_CALLS = 2_000_000;
+    private static final int MEASURED_CALLS = 10_000_000;
 
-    // Method to handle failures and update circuit state
-    private void handleFailure() {
-        consecutiveFailures++;
-        lastFailureTime = System.currentTimeMillis();
-        // System.out.println(consecutiveFailures + "---" + lastFailureTime);
+    // Method to run the benchmark with one breaker shared by the given number of threads
+    public static void run(int threads) throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        Callable<String> alwaysSucceeds = () -> "Success";
+        Supplier<String> fallback = () -> "Fallback: Service unavailable";
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LongAdder allocatedBytes = new LongAdder();
+        CountDownLatch warmedUp = new CountDownLatch(threads);
+        CountDownLatch startGate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < WARMUP_CALLS; i++) {
+                        circuitBreaker.execute(alwaysSucceeds, fallback);
+                    }
+                    warmedUp.countDown();
+                    startGate.await();
+                    long before = threadBean.getCurrentThreadAllocatedBytes();
+                    for (int i = 0; i < MEASURED_CALLS; i++) {
+                        circuitBreaker.execute(alwaysSucceeds, fallback);
+                    }
+                    allocatedBytes.add(threadBean.getCurrentThreadAllocatedBytes() - before);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        warmedUp.await(); // The clock starts only once every thread has finished its warm-up
+        long start = System.nanoTime();
+        startGate.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long totalCalls = (long) threads * MEASURED_CALLS;
+        System.out.printf("%d threads: %.1f M ops/sec, %.3f bytes allocated per call [%s]%n", threads,
+                totalCalls / seconds / 1e6, allocatedBytes.sum() / (double) totalCalls, circuitBreaker.getState());
     }
 }
 
 // Main class to demonstrate the Circuit Breaker pattern
 public class CircuitBreakerPattern {
-    public static void main(String[] args) {
-        CircuitBreaker circuitBreaker = new CircuitBreaker();
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+                CircuitBreakerBenchmark.run(threads);
+            }
+            return;
+        }
+
+        CircuitBreaker circuitBreaker = new CircuitBreaker(new CircuitBreakerConfig.Builder()
+                .failureRateThreshold(50)
+                .minimumNumberOfCalls(4)
+                .countBasedWindow(10)
+                .waitDurationInOpenStateMillis(5000)
+                .permittedCallsInHalfOpenState(2)
+                .build());
+        RemoteService remoteService = new RemoteService();
+        Supplier<String> fallback = () -> "Fallback: Service unavailable";
 
         // Simulate handling requests through the Circuit Breaker
         for (int i = 0; i < 10; i++) {
-            System.out.println("Request " + (i + 1) + ": " + circuitBreaker.handleRequest());
+            System.out.println("Request " + (i + 1) + ": " + circuitBreaker.execute(remoteService, fallback)
+                    + " [" + circuitBreaker.getState() + "]");
         }
     }
-}
\ No newline at end of file
+}
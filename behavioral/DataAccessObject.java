@@ -11,8 +11,47 @@
  * @since 02/05/2024
  */
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 // Entity class representing a user
 class User {
@@ -72,43 +111,2660 @@ interface UserDAO {
 
     // Method to delete a user by ID
     void deleteUser(long id);
+
+    // Method to retrieve a user by their unique username
+    User findByUsername(String username);
+
+    // Method to retrieve a user by their unique email
+    User findByEmail(String email);
+
+    // Method to retrieve up to limit users whose username starts with the prefix, in username order
+    List<User> findByUsernamePrefix(String prefix, int limit);
+
+    // Method to retrieve up to limit users whose email starts with the prefix, in email order
+    List<User> findByEmailPrefix(String prefix, int limit);
+}
+
+// SecondaryIndex class, a unique index on one string field of the users in a store. Exact lookups go through
+// an open-addressing hash table of (id, value hash) entries in a direct buffer; prefix queries go through
+// the ids kept in value order, in direct-buffer blocks of up to 512. The index stores no values and no
+// objects per user, and keeps no ids on the heap:
+// it reads a user's value back from the store, so the store must remove a user's old value before changing
+// it and add the new one after. Changes need the store's write lock; lookups need at least its read lock.
+// The index can be saved to a file and loaded back without reading any values but the first of each block
+class SecondaryIndex {
+    private static final int ENTRY_BYTES = 16; // Id, then the value's hash tagged as occupied
+    private static final long OCCUPIED = 1L << 32;
+    private static final int BLOCK_IDS = 512;
+    private static final int LOADED_BLOCK_IDS = BLOCK_IDS * 3 / 4; // Leaves room to add before splitting
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE / ENTRY_BYTES + 1;
+
+    private final LongFunction<String> values;
+    private ByteBuffer table = ByteBuffer.allocateDirect(1024 * ENTRY_BYTES);
+    private int mask = 1023;
+    private int size;
+    private final List<Block> blocks = new ArrayList<>();
+
+    // Block class, a run of ids in value order in a direct buffer. Its first value is kept so the blocks can
+    // be searched without reading the store
+    private static final class Block {
+        final ByteBuffer ids = ByteBuffer.allocateDirect(BLOCK_IDS * Long.BYTES);
+        int size;
+        String first;
+
+        long id(int i) {
+            return ids.getLong(i * Long.BYTES);
+        }
+
+        // Method to move the ids in [from, to) by shift places, taking the overlap into account
+        void move(int from, int to, int shift) {
+            if (shift > 0) {
+                for (int i = to - 1; i >= from; i--) {
+                    ids.putLong((i + shift) * Long.BYTES, id(i));
+                }
+            } else {
+                for (int i = from; i < to; i++) {
+                    ids.putLong((i + shift) * Long.BYTES, id(i));
+                }
+            }
+        }
+    }
+
+    // Constructor taking the function that reads a stored user's value by id
+    SecondaryIndex(LongFunction<String> values) {
+        this.values = values;
+    }
+
+    // Method to find the id of the user with the value, or null
+    Long find(String value) {
+        if (value == null) {
+            return null;
+        }
+        long tag = tag(value);
+        int entry = (int) mix(tag) & mask;
+        while (true) {
+            int position = entry * ENTRY_BYTES;
+            long entryTag = table.getLong(position + 8);
+            if (entryTag == 0) {
+                return null;
+            }
+            if (entryTag == tag) {
+                long id = table.getLong(position);
+                if (value.equals(values.apply(id))) {
+                    return id;
+                }
+            }
+            entry = (entry + 1) & mask;
+        }
+    }
+
+    // Method to list the ids of up to limit users whose value starts with the prefix, in value order
+    List<Long> findByPrefix(String prefix, int limit) {
+        List<Long> ids = new ArrayList<>();
+        if (blocks.isEmpty()) {
+            return ids;
+        }
+        int b = blockFor(prefix);
+        for (int i = lowerBound(blocks.get(b), prefix); b < blocks.size(); b++, i = 0) {
+            Block block = blocks.get(b);
+            for (; i < block.size; i++) {
+                if (ids.size() == limit || !values.apply(block.id(i)).startsWith(prefix)) {
+                    return ids;
+                }
+                ids.add(block.id(i));
+            }
+        }
+        return ids;
+    }
+
+    // Method to index the user's value; the store must already hold it
+    void add(long id, String value) {
+        if (value == null) {
+            return;
+        }
+        if (size + 1 > (mask + 1) * 0.7) {
+            resizeTable();
+        }
+        insertEntry(table, mask, id, tag(value));
+        size++;
+
+        if (blocks.isEmpty()) {
+            blocks.add(new Block());
+        }
+        int b = blockFor(value);
+        Block block = blocks.get(b);
+        int i = lowerBound(block, value);
+        block.move(i, block.size, 1);
+        block.ids.putLong(i * Long.BYTES, id);
+        block.size++;
+        if (i == 0) {
+            block.first = value;
+        }
+        if (block.size == BLOCK_IDS) {
+            // Split the full block in half
+            Block upper = new Block();
+            upper.size = BLOCK_IDS / 2;
+            block.size = BLOCK_IDS - upper.size;
+            upper.ids.put(0, block.ids, block.size * Long.BYTES, upper.size * Long.BYTES);
+            upper.first = values.apply(upper.id(0));
+            blocks.add(b + 1, upper);
+        }
+    }
+
+    // Method to remove the user's value from the index; the store must still hold it
+    void remove(long id, String value) {
+        if (value == null) {
+            return;
+        }
+        removeEntry(id, tag(value));
+        size--;
+
+        int b = blockFor(value);
+        Block block = blocks.get(b);
+        int i = lowerBound(block, value);
+        if (i == block.size || block.id(i) != id) {
+            throw new IllegalStateException("Index does not hold user " + id + " under " + value);
+        }
+        block.move(i + 1, block.size, -1);
+        block.size--;
+        if (block.size == 0) {
+            blocks.remove(b);
+        } else if (i == 0) {
+            block.first = values.apply(block.id(0));
+        }
+    }
+
+    // Method to write the index at the channel's position: table capacity and size, the hash table as it is,
+    // then the ids in value order
+    void save(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16).putLong(mask + 1L).putLong(size).flip();
+        writeFully(channel, header);
+        writeFully(channel, table.duplicate().clear());
+        for (Block block : blocks) {
+            writeFully(channel, block.ids.duplicate().position(0).limit(block.size * Long.BYTES));
+        }
+    }
+
+    // Method to replace this empty index with one written by save, leaving out the given users, whose
+    // values the store may no longer hold. The hash table is mapped privately, so it is read on first use
+    // and changed in memory only
+    void load(FileChannel channel, Set<Long> excluded) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        readFully(channel, header);
+        int capacity = (int) header.getLong(0);
+        int saved = (int) header.getLong(8);
+        long tableBytes = (long) capacity * ENTRY_BYTES;
+        if (Integer.bitCount(capacity) != 1 || saved < 0 || channel.position() + tableBytes > channel.size()) {
+            throw new IOException("Corrupt index header");
+        }
+        table = channel.map(FileChannel.MapMode.PRIVATE, channel.position(), tableBytes);
+        mask = capacity - 1;
+        size = saved;
+        channel.position(channel.position() + tableBytes);
+        if (!excluded.isEmpty()) {
+            List<long[]> dropped = new ArrayList<>();
+            for (int position = 0; position < tableBytes; position += ENTRY_BYTES) {
+                long tag = table.getLong(position + 8);
+                if (tag != 0 && excluded.contains(table.getLong(position))) {
+                    dropped.add(new long[] { table.getLong(position), tag });
+                }
+            }
+            for (long[] entry : dropped) {
+                removeEntry(entry[0], entry[1]);
+                size--;
+            }
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocateDirect(64 * 1024);
+        Block block = null;
+        for (long remaining = (long) saved * Long.BYTES; remaining > 0; remaining -= chunk.limit()) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), remaining));
+            readFully(channel, chunk);
+            for (int position = 0; position < chunk.limit(); position += Long.BYTES) {
+                long id = chunk.getLong(position);
+                if (excluded.contains(id)) {
+                    continue;
+                }
+                if (block == null || block.size == LOADED_BLOCK_IDS) {
+                    block = new Block();
+                    blocks.add(block);
+                }
+                block.ids.putLong(block.size++ * Long.BYTES, id);
+            }
+        }
+        for (Block loaded : blocks) {
+            loaded.first = values.apply(loaded.id(0));
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes) < 0) {
+                throw new EOFException("Index file ends early");
+            }
+        }
+        bytes.flip();
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    // Method to find the last block whose first value is not after the value, or the first block
+    private int blockFor(String value) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blocks.get(middle).first.compareTo(value) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // Method to find the first position in the block whose value is not before the value
+    private int lowerBound(Block block, String value) {
+        int low = 0;
+        int high = block.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values.apply(block.id(middle)).compareTo(value) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long tag(String value) {
+        return OCCUPIED | (value.hashCode() & 0xFFFFFFFFL);
+    }
+
+    private static void insertEntry(ByteBuffer table, int mask, long id, long tag) {
+        int entry = (int) mix(tag) & mask;
+        while (table.getLong(entry * ENTRY_BYTES + 8) != 0) {
+            entry = (entry + 1) & mask;
+        }
+        table.putLong(entry * ENTRY_BYTES, id);
+        table.putLong(entry * ENTRY_BYTES + 8, tag);
+    }
+
+    // Method to remove the id's entry, shifting later entries of the probe run back into the gap so that
+    // the table needs no tombstones
+    private void removeEntry(long id, long tag) {
+        int hole = (int) mix(tag) & mask;
+        while (table.getLong(hole * ENTRY_BYTES) != id || table.getLong(hole * ENTRY_BYTES + 8) != tag) {
+            hole = (hole + 1) & mask;
+        }
+        int entry = hole;
+        while (true) {
+            entry = (entry + 1) & mask;
+            long entryTag = table.getLong(entry * ENTRY_BYTES + 8);
+            if (entryTag == 0) {
+                break;
+            }
+            int home = (int) mix(entryTag) & mask;
+            // The entry can fill the hole only if its home is not cyclically within (hole, entry]
+            boolean homeAfterHole = hole <= entry ? hole < home && home <= entry : hole < home || home <= entry;
+            if (!homeAfterHole) {
+                table.putLong(hole * ENTRY_BYTES, table.getLong(entry * ENTRY_BYTES));
+                table.putLong(hole * ENTRY_BYTES + 8, entryTag);
+                hole = entry;
+            }
+        }
+        table.putLong(hole * ENTRY_BYTES, 0);
+        table.putLong(hole * ENTRY_BYTES + 8, 0);
+    }
+
+    private void resizeTable() {
+        int capacity = (mask + 1) * 2;
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("Index is full at " + size + " values");
+        }
+        ByteBuffer resized = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES);
+        for (int position = 0; position < table.capacity(); position += ENTRY_BYTES) {
+            long tag = table.getLong(position + 8);
+            if (tag != 0) {
+                insertEntry(resized, capacity - 1, table.getLong(position), tag);
+            }
+        }
+        table = resized;
+        mask = capacity - 1;
+    }
+
+    // The finalizer of MurmurHash3, spreading the 32-bit string hashes over the table
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
+
+// UserIndexes class, the unique secondary indexes a user store keeps on username and email. Null values are
+// not indexed
+class UserIndexes {
+    private final SecondaryIndex usernames;
+    private final SecondaryIndex emails;
+
+    // Constructor taking the functions that read a stored user's username and email by id
+    UserIndexes(LongFunction<String> usernameOf, LongFunction<String> emailOf) {
+        usernames = new SecondaryIndex(usernameOf);
+        emails = new SecondaryIndex(emailOf);
+    }
+
+    // Method to change a user's indexed values around the store's own write of the user. Old values are null
+    // for a new user and new values null for a deleted one. Nothing changes if another user already has the
+    // new username or email
+    void update(long id, String oldUsername, String oldEmail, String username, String email, Runnable write) {
+        checkUnique(usernames, id, username, "Username");
+        checkUnique(emails, id, email, "Email");
+        boolean usernameChanged = !Objects.equals(oldUsername, username);
+        boolean emailChanged = !Objects.equals(oldEmail, email);
+        if (usernameChanged) {
+            usernames.remove(id, oldUsername);
+        }
+        if (emailChanged) {
+            emails.remove(id, oldEmail);
+        }
+        write.run();
+        if (usernameChanged) {
+            usernames.add(id, username);
+        }
+        if (emailChanged) {
+            emails.add(id, email);
+        }
+    }
+
+    // Method to index a user already in the store without checking uniqueness, when rebuilding the indexes
+    void add(long id, String username, String email) {
+        usernames.add(id, username);
+        emails.add(id, email);
+    }
+
+    // Method to write both indexes at the channel's position
+    void save(FileChannel channel) throws IOException {
+        usernames.save(channel);
+        emails.save(channel);
+    }
+
+    // Method to load both indexes as written by save, leaving out the given users
+    void load(FileChannel channel, Set<Long> excluded) throws IOException {
+        usernames.load(channel, excluded);
+        emails.load(channel, excluded);
+    }
+
+    Long findIdByUsername(String username) {
+        return usernames.find(username);
+    }
+
+    Long findIdByEmail(String email) {
+        return emails.find(email);
+    }
+
+    List<Long> findIdsByUsernamePrefix(String prefix, int limit) {
+        return usernames.findByPrefix(prefix, limit);
+    }
+
+    List<Long> findIdsByEmailPrefix(String prefix, int limit) {
+        return emails.findByPrefix(prefix, limit);
+    }
+
+    private static void checkUnique(SecondaryIndex index, long id, String value, String field) {
+        Long owner = index.find(value);
+        if (owner != null && owner != id) {
+            throw new IllegalArgumentException(field + " " + value + " already belongs to user " + owner);
+        }
+    }
+}
+
+// ConcurrentLongObjectMap class, a concurrent hash map from primitive long keys to objects. Keys and values
+// live in parallel arrays with open addressing (linear probing), so there are no boxed keys and no entry
+// objects. The map is split into segments: writers lock only the key's segment, and readers take no lock
+// at all and finish after a bounded probe, so reads are wait-free. A writer stores the value before the
+// key with release semantics and a reader loads the key before the value with acquire semantics, so a
+// reader that finds a key also sees its value. Removing a key clears its value and leaves the key behind
+// as a tombstone for probes to pass over; tombstones are dropped when the segment's table is rebuilt
+class ConcurrentLongObjectMap<V> {
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final long EMPTY = 0; // Marks a free slot; key 0 itself is kept in zeroKeyValue
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final Segment<V>[] segments;
+    private final int segmentMask;
+    private final ReentrantLock zeroKeyLock = new ReentrantLock();
+    private volatile Object zeroKeyValue;
+
+    // Table class holding one segment's slots; replaced whole when the segment grows
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    // Segment class owning one table and the lock its writers take
+    private static final class Segment<V> {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile Table table;
+        int size; // Live keys, guarded by the lock
+        int used; // Live keys plus tombstones, guarded by the lock
+
+        Segment(int capacity) {
+            table = new Table(capacity);
+        }
+    }
+
+    public ConcurrentLongObjectMap() {
+        this(64, 16);
+    }
+
+    // Constructor taking the number of segments (a power of two) and the expected number of keys
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ConcurrentLongObjectMap(int segmentCount, int expectedSize) {
+        if (segmentCount <= 0 || Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("Segment count must be a power of two: " + segmentCount);
+        }
+        segments = new Segment[segmentCount];
+        segmentMask = segmentCount - 1;
+        int perSegment = tableCapacity(expectedSize / segmentCount + 1);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>(perSegment);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == EMPTY) {
+            return (V) zeroKeyValue;
+        }
+        long hash = mix(key);
+        Table table = segmentFor(hash).table;
+        int index = (int) hash & table.mask;
+        // At least one slot is always free, so the probe ends
+        while (true) {
+            long current = (long) KEYS.getAcquire(table.keys, index);
+            if (current == key) {
+                return (V) VALUES.getAcquire(table.values, index);
+            }
+            if (current == EMPTY) {
+                return null;
+            }
+            index = (index + 1) & table.mask;
+        }
+    }
+
+    // Method to map the key to the value, returning the previous value or null
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+        if (key == EMPTY) {
+            zeroKeyLock.lock();
+            try {
+                V previous = (V) zeroKeyValue;
+                zeroKeyValue = value;
+                return previous;
+            } finally {
+                zeroKeyLock.unlock();
+            }
+        }
+        long hash = mix(key);
+        Segment<V> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            Table table = segment.table;
+            int index = (int) hash & table.mask;
+            while (true) {
+                long current = table.keys[index];
+                if (current == key) {
+                    V previous = (V) table.values[index];
+                    VALUES.setRelease(table.values, index, value);
+                    if (previous == null) {
+                        segment.size++; // Reusing this key's tombstone
+                    }
+                    return previous;
+                }
+                if (current == EMPTY) {
+                    VALUES.setRelease(table.values, index, value);
+                    KEYS.setRelease(table.keys, index, key);
+                    segment.size++;
+                    if (++segment.used > table.keys.length * LOAD_FACTOR) {
+                        rebuild(segment);
+                    }
+                    return null;
+                }
+                index = (index + 1) & table.mask;
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    // Method to remove the key, returning its value or null
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == EMPTY) {
+            zeroKeyLock.lock();
+            try {
+                V previous = (V) zeroKeyValue;
+                zeroKeyValue = null;
+                return previous;
+            } finally {
+                zeroKeyLock.unlock();
+            }
+        }
+        long hash = mix(key);
+        Segment<V> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            Table table = segment.table;
+            int index = (int) hash & table.mask;
+            while (true) {
+                long current = table.keys[index];
+                if (current == key) {
+                    V previous = (V) table.values[index];
+                    if (previous != null) {
+                        VALUES.setRelease(table.values, index, null);
+                        segment.size--;
+                    }
+                    return previous;
+                }
+                if (current == EMPTY) {
+                    return null;
+                }
+                index = (index + 1) & table.mask;
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    // Method to count the keys; exact only while no writes are in progress
+    public long size() {
+        long size = zeroKeyValue == null ? 0 : 1;
+        for (Segment<V> segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    // Method to copy a segment's live keys into a new table, doubling it unless tombstones made up the
+    // growth; readers keep using the old table until the new one is published
+    private void rebuild(Segment<V> segment) {
+        Table old = segment.table;
+        int capacity = segment.size * 2 > old.keys.length * LOAD_FACTOR ? old.keys.length * 2 : old.keys.length;
+        Table table = new Table(capacity);
+        for (int i = 0; i < old.keys.length; i++) {
+            Object value = old.values[i];
+            if (value == null) {
+                continue; // Free slot or tombstone
+            }
+            int index = (int) mix(old.keys[i]) & table.mask;
+            while (table.keys[index] != EMPTY) {
+                index = (index + 1) & table.mask;
+            }
+            table.keys[index] = old.keys[i];
+            table.values[index] = value;
+        }
+        segment.used = segment.size;
+        segment.table = table; // Volatile write publishes the fully built table
+    }
+
+    // Method to pick the segment from the high half of the hash; the slot index uses the low bits
+    private Segment<V> segmentFor(long hash) {
+        return segments[(int) (hash >>> 32) & segmentMask];
+    }
+
+    private static int tableCapacity(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        return Math.max(capacity, 8);
+    }
+
+    // The finalizer of MurmurHash3, spreading sequential ids over both the segments and the slots
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
+
+// Concrete implementation of UserDAO using in-memory storage (for
+// demonstration). The store is keyed by the primitive id and is safe for concurrent use; lookups take no
+// lock. Usernames and emails are kept unique by claiming them in concurrent hash maps, which also serve the
+// exact lookups, and are kept in order for prefix queries in concurrent sorted sets, so writes to different
+// users only meet in the id map's segments and in those maps' own fine-grained updates. Writes to the same
+// user are ordered by a lock striped by id
+class InMemoryUserDAO implements UserDAO {
+    private static final int LOCK_STRIPES = 64;
+
+    // In-memory storage for user data
+    private final ConcurrentLongObjectMap<StoredUser> users = new ConcurrentLongObjectMap<>();
+    private final ValueIndex usernames = new ValueIndex("Username");
+    private final ValueIndex emails = new ValueIndex("Email");
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    // A stored user with the username and email it is indexed under, which stay as they were stored even if
+    // the caller changes the User object before passing it to updateUser
+    private static final class StoredUser {
+        final User user;
+        final String username;
+        final String email;
+
+        StoredUser(User user) {
+            this.user = user;
+            this.username = user.getUsername();
+            this.email = user.getEmail();
+        }
+    }
+
+    // ValueIndex class, the unique index on one field. A value is claimed before the user is written with it
+    // and released after the user is written without it, so a claim may briefly point at a user that does
+    // not hold the value yet, or no longer does; lookups check the stored user. Only the claim's owner adds
+    // or removes a value in the sorted set
+    private static final class ValueIndex {
+        final String field;
+        final ConcurrentHashMap<String, Long> ids = new ConcurrentHashMap<>();
+        final ConcurrentSkipListSet<String> sorted = new ConcurrentSkipListSet<>();
+
+        ValueIndex(String field) {
+            this.field = field;
+        }
+
+        // Method to claim a user's new value unless it is unchanged or null; returns whether a claim was made
+        boolean claim(long id, String oldValue, String value) {
+            if (value == null || value.equals(oldValue)) {
+                return false;
+            }
+            Long owner = ids.putIfAbsent(value, id);
+            if (owner != null && owner != id) {
+                throw new IllegalArgumentException(field + " " + value + " already belongs to user " + owner);
+            }
+            return owner == null;
+        }
+
+        // Method to order the new value and give up the old one, once the user has been written
+        void settle(long id, String oldValue, String value) {
+            if (Objects.equals(oldValue, value)) {
+                return;
+            }
+            if (value != null) {
+                sorted.add(value);
+            }
+            if (oldValue != null) {
+                sorted.remove(oldValue);
+                ids.remove(oldValue, id);
+            }
+        }
+    }
+
+    InMemoryUserDAO() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public void addUser(User user) {
+        // Add user to the in-memory storage
+        updateUser(user);
+    }
+
+    @Override
+    public User getUserById(long id) {
+        // Retrieve user from the in-memory storage by ID
+        StoredUser stored = users.get(id);
+        return stored == null ? null : stored.user;
+    }
+
+    @Override
+    public void updateUser(User user) {
+        // Update user in the in-memory storage, claiming its new username and email first
+        long id = user.getId();
+        StoredUser replacement = new StoredUser(user);
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            StoredUser stored = users.get(id);
+            String oldUsername = stored == null ? null : stored.username;
+            String oldEmail = stored == null ? null : stored.email;
+            boolean claimedUsername = usernames.claim(id, oldUsername, replacement.username);
+            try {
+                emails.claim(id, oldEmail, replacement.email);
+            } catch (IllegalArgumentException e) {
+                if (claimedUsername) {
+                    usernames.ids.remove(replacement.username, id);
+                }
+                throw e;
+            }
+            users.put(id, replacement);
+            usernames.settle(id, oldUsername, replacement.username);
+            emails.settle(id, oldEmail, replacement.email);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteUser(long id) {
+        // Delete user from the in-memory storage by ID, then release its username and email
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            StoredUser stored = users.remove(id);
+            if (stored != null) {
+                usernames.settle(id, stored.username, null);
+                emails.settle(id, stored.email, null);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public User findByUsername(String username) {
+        return username == null ? null : find(usernames, username);
+    }
+
+    @Override
+    public User findByEmail(String email) {
+        return email == null ? null : find(emails, email);
+    }
+
+    @Override
+    public List<User> findByUsernamePrefix(String prefix, int limit) {
+        return findByPrefix(usernames, prefix, limit);
+    }
+
+    @Override
+    public List<User> findByEmailPrefix(String prefix, int limit) {
+        return findByPrefix(emails, prefix, limit);
+    }
+
+    private ReentrantLock lockFor(long id) {
+        return locks[(int) (id ^ (id >>> 32)) & (LOCK_STRIPES - 1)];
+    }
+
+    // Method to get the user that claimed the value, if it has been written with it
+    private User find(ValueIndex index, String value) {
+        Long id = index.ids.get(value);
+        if (id == null) {
+            return null;
+        }
+        StoredUser stored = users.get(id);
+        if (stored == null || !value.equals(index == usernames ? stored.username : stored.email)) {
+            return null;
+        }
+        return stored.user;
+    }
+
+    private List<User> findByPrefix(ValueIndex index, String prefix, int limit) {
+        List<User> found = new ArrayList<>();
+        for (String value : index.sorted.tailSet(prefix)) {
+            if (found.size() == limit || !value.startsWith(prefix)) {
+                break;
+            }
+            User user = find(index, value);
+            if (user != null) {
+                found.add(user);
+            }
+        }
+        return found;
+    }
+}
+
+// OffHeapUserDAO class storing users outside the Java heap, so heap size and GC time stay flat however many
+// users it holds. Users are kept in columns of direct buffers (id, username reference and email reference
+// per slot), the strings are UTF-8 bytes in an append-only arena of direct buffers, and an open-addressing
+// index in another direct buffer maps ids to slots. Deleting a user moves the last slot into the hole, so
+// the columns stay dense. getUserById returns a small flyweight view that reads the columns when asked
+// rather than materializing the user. The secondary indexes on username and email hold only ids, in a
+// direct buffer and in direct-buffer blocks, and read the values back from the columns
+class OffHeapUserDAO implements UserDAO {
+    private static final int SLOTS_PER_CHUNK = 1 << 20; // 8 MB per column chunk
+    private static final int ARENA_CHUNK_BYTES = 1 << 26; // 64 MB per arena chunk
+    private static final int MAX_STRING_BYTES = 0xFFFF; // References keep the length in 16 bits
+    private static final long NULL_REFERENCE = -1;
+    private static final int INDEX_ENTRY_BYTES = 16; // Id, then slot + 1 (0 marks a free entry)
+    private static final int MAX_INDEX_CAPACITY = Integer.MAX_VALUE / INDEX_ENTRY_BYTES + 1;
+
+    private final List<ByteBuffer> ids = new ArrayList<>();
+    private final List<ByteBuffer> usernames = new ArrayList<>();
+    private final List<ByteBuffer> emails = new ArrayList<>();
+    private List<ByteBuffer> arena = new ArrayList<>();
+    private long arenaPosition;
+    private long garbageBytes; // Arena bytes of strings that have been replaced or deleted
+    private ByteBuffer index = ByteBuffer.allocateDirect(1024 * INDEX_ENTRY_BYTES);
+    private int indexMask = 1023;
+    private int count;
+    private long deletions; // Deletes move slots, so views re-resolve their slot after one
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final UserIndexes indexes = new UserIndexes(id -> readString(usernames, findSlot(id)),
+            id -> readString(emails, findSlot(id)));
+
+    // UserView class, a flyweight over one stored user. Fields set on the view are kept on the view, so it
+    // can be edited and passed to updateUser like a detached entity; other fields are read from the store
+    private static final class UserView extends User {
+        private final OffHeapUserDAO store;
+        private int slot;
+        private long deletionsSeen;
+        private boolean usernameSet;
+        private boolean emailSet;
+
+        UserView(OffHeapUserDAO store, long id, int slot) {
+            this.store = store;
+            this.slot = slot;
+            this.deletionsSeen = store.deletions;
+            super.setId(id);
+        }
+
+        @Override
+        public String getUsername() {
+            return usernameSet ? super.getUsername() : store.readColumn(this, store.usernames);
+        }
+
+        @Override
+        public void setUsername(String username) {
+            super.setUsername(username);
+            usernameSet = true;
+        }
+
+        @Override
+        public String getEmail() {
+            return emailSet ? super.getEmail() : store.readColumn(this, store.emails);
+        }
+
+        @Override
+        public void setEmail(String email) {
+            super.setEmail(email);
+            emailSet = true;
+        }
+    }
+
+    @Override
+    public void addUser(User user) {
+        // Add or replace the user, as the in-memory store does
+        updateUser(user);
+    }
+
+    @Override
+    public User getUserById(long id) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(id);
+            return slot < 0 ? null : new UserView(this, id, slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateUser(User user) {
+        // Encode before taking the lock; the view's getters may need the read lock themselves
+        long id = user.getId();
+        String usernameValue = user.getUsername();
+        String emailValue = user.getEmail();
+        byte[] username = encode(usernameValue);
+        byte[] email = encode(emailValue);
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(id);
+            indexes.update(id, readString(usernames, slot), readString(emails, slot), usernameValue, emailValue,
+                    () -> write(id, username, email));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteUser(long id) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(id);
+            if (slot >= 0) {
+                indexes.update(id, readString(usernames, slot), readString(emails, slot), null, null,
+                        () -> delete(id, slot));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public User findByUsername(String username) {
+        lock.readLock().lock();
+        try {
+            return view(indexes.findIdByUsername(username));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public User findByEmail(String email) {
+        lock.readLock().lock();
+        try {
+            return view(indexes.findIdByEmail(email));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<User> findByUsernamePrefix(String prefix, int limit) {
+        lock.readLock().lock();
+        try {
+            return views(indexes.findIdsByUsernamePrefix(prefix, limit));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<User> findByEmailPrefix(String prefix, int limit) {
+        lock.readLock().lock();
+        try {
+            return views(indexes.findIdsByEmailPrefix(prefix, limit));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Method to get how many users are stored
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private User view(Long id) {
+        return id == null ? null : new UserView(this, id, findSlot(id));
+    }
+
+    private List<User> views(List<Long> ids) {
+        List<User> found = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            found.add(new UserView(this, id, findSlot(id)));
+        }
+        return found;
+    }
+
+    // Method to store the user's strings in its slot, taking a new slot for a new id
+    private void write(long id, byte[] username, byte[] email) {
+        int slot = findSlot(id);
+        if (slot < 0) {
+            slot = count++;
+            if (slot / SLOTS_PER_CHUNK == ids.size()) {
+                ids.add(ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * 8));
+                usernames.add(ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * 8));
+                emails.add(ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * 8));
+            }
+            putLong(ids, slot, id);
+            insertIndex(id, slot);
+        } else {
+            release(getLong(usernames, slot));
+            release(getLong(emails, slot));
+        }
+        putLong(usernames, slot, append(username));
+        putLong(emails, slot, append(email));
+        compactArenaIfMostlyGarbage();
+    }
+
+    // Method to free the user's slot
+    private void delete(long id, int slot) {
+        release(getLong(usernames, slot));
+        release(getLong(emails, slot));
+        removeIndex(id);
+        deletions++;
+        // Move the last user into the freed slot so the columns have no holes
+        int last = --count;
+        if (slot != last) {
+            long movedId = getLong(ids, last);
+            putLong(ids, slot, movedId);
+            putLong(usernames, slot, getLong(usernames, last));
+            putLong(emails, slot, getLong(emails, last));
+            index.putLong(indexPosition(movedId) + 8, slot + 1L);
+        }
+    }
+
+    // Method to decode one string column of a viewed user, or null if the user is no longer stored
+    String readColumn(UserView view, List<ByteBuffer> column) {
+        lock.readLock().lock();
+        try {
+            if (view.deletionsSeen != deletions) {
+                view.slot = findSlot(view.getId());
+                view.deletionsSeen = deletions;
+            }
+            return readString(column, view.slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Method to decode one string column of a slot, or null if the slot is -1 or the string is null
+    private String readString(List<ByteBuffer> column, int slot) {
+        if (slot < 0) {
+            return null;
+        }
+        long reference = getLong(column, slot);
+        if (reference == NULL_REFERENCE) {
+            return null;
+        }
+        long position = reference >>> 16;
+        byte[] bytes = new byte[(int) (reference & MAX_STRING_BYTES)];
+        arena.get((int) (position / ARENA_CHUNK_BYTES)).get((int) (position % ARENA_CHUNK_BYTES), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encode(String value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Strings are limited to " + MAX_STRING_BYTES + " UTF-8 bytes");
+        }
+        return bytes;
+    }
+
+    // Method to copy a string's bytes into the arena, returning its reference: arena position and length
+    private long append(byte[] bytes) {
+        if (bytes == null) {
+            return NULL_REFERENCE;
+        }
+        // A string never spans two chunks
+        long chunkRemaining = ARENA_CHUNK_BYTES - arenaPosition % ARENA_CHUNK_BYTES;
+        if (bytes.length > chunkRemaining) {
+            garbageBytes += chunkRemaining;
+            arenaPosition += chunkRemaining;
+        }
+        if (arena.size() <= arenaPosition / ARENA_CHUNK_BYTES) {
+            arena.add(ByteBuffer.allocateDirect(ARENA_CHUNK_BYTES));
+        }
+        long position = arenaPosition;
+        arena.get((int) (position / ARENA_CHUNK_BYTES)).put((int) (position % ARENA_CHUNK_BYTES), bytes);
+        arenaPosition += bytes.length;
+        return position << 16 | bytes.length;
+    }
+
+    private void release(long reference) {
+        if (reference != NULL_REFERENCE) {
+            garbageBytes += reference & MAX_STRING_BYTES;
+        }
+    }
+
+    // Method to copy the live strings into a fresh arena once most of the arena is garbage
+    private void compactArenaIfMostlyGarbage() {
+        if (garbageBytes < ARENA_CHUNK_BYTES || garbageBytes * 2 < arenaPosition) {
+            return;
+        }
+        List<ByteBuffer> old = arena;
+        arena = new ArrayList<>();
+        arenaPosition = 0;
+        garbageBytes = 0;
+        for (int slot = 0; slot < count; slot++) {
+            putLong(usernames, slot, append(copyOut(old, getLong(usernames, slot))));
+            putLong(emails, slot, append(copyOut(old, getLong(emails, slot))));
+        }
+    }
+
+    private static byte[] copyOut(List<ByteBuffer> chunks, long reference) {
+        if (reference == NULL_REFERENCE) {
+            return null;
+        }
+        long position = reference >>> 16;
+        byte[] bytes = new byte[(int) (reference & MAX_STRING_BYTES)];
+        chunks.get((int) (position / ARENA_CHUNK_BYTES)).get((int) (position % ARENA_CHUNK_BYTES), bytes);
+        return bytes;
+    }
+
+    private static long getLong(List<ByteBuffer> column, int slot) {
+        return column.get(slot / SLOTS_PER_CHUNK).getLong((slot % SLOTS_PER_CHUNK) * 8);
+    }
+
+    private static void putLong(List<ByteBuffer> column, int slot, long value) {
+        column.get(slot / SLOTS_PER_CHUNK).putLong((slot % SLOTS_PER_CHUNK) * 8, value);
+    }
+
+    // Method to find the user's slot through the index, or -1 if the id is not stored
+    private int findSlot(long id) {
+        int position = indexPosition(id);
+        return position < 0 ? -1 : (int) (index.getLong(position + 8) - 1);
+    }
+
+    // Method to find the byte position of the id's index entry, or -1
+    private int indexPosition(long id) {
+        int entry = (int) mix(id) & indexMask;
+        while (true) {
+            int position = entry * INDEX_ENTRY_BYTES;
+            if (index.getLong(position + 8) == 0) {
+                return -1;
+            }
+            if (index.getLong(position) == id) {
+                return position;
+            }
+            entry = (entry + 1) & indexMask;
+        }
+    }
+
+    private void insertIndex(long id, int slot) {
+        if (count > (indexMask + 1) * 0.7) {
+            resizeIndex();
+        }
+        int entry = (int) mix(id) & indexMask;
+        while (index.getLong(entry * INDEX_ENTRY_BYTES + 8) != 0) {
+            entry = (entry + 1) & indexMask;
+        }
+        index.putLong(entry * INDEX_ENTRY_BYTES, id);
+        index.putLong(entry * INDEX_ENTRY_BYTES + 8, slot + 1L);
+    }
+
+    // Method to remove the id's index entry, shifting later entries of the probe run back into the gap so
+    // that the index needs no tombstones
+    private void removeIndex(long id) {
+        int hole = indexPosition(id) / INDEX_ENTRY_BYTES;
+        int entry = hole;
+        while (true) {
+            entry = (entry + 1) & indexMask;
+            long slot = index.getLong(entry * INDEX_ENTRY_BYTES + 8);
+            if (slot == 0) {
+                break;
+            }
+            long key = index.getLong(entry * INDEX_ENTRY_BYTES);
+            int home = (int) mix(key) & indexMask;
+            // The entry can fill the hole only if its home is not cyclically within (hole, entry]
+            boolean homeAfterHole = hole <= entry ? hole < home && home <= entry : hole < home || home <= entry;
+            if (!homeAfterHole) {
+                index.putLong(hole * INDEX_ENTRY_BYTES, key);
+                index.putLong(hole * INDEX_ENTRY_BYTES + 8, slot);
+                hole = entry;
+            }
+        }
+        index.putLong(hole * INDEX_ENTRY_BYTES, 0);
+        index.putLong(hole * INDEX_ENTRY_BYTES + 8, 0);
+    }
+
+    private void resizeIndex() {
+        int capacity = (indexMask + 1) * 2;
+        if (capacity > MAX_INDEX_CAPACITY) {
+            throw new IllegalStateException("Index is full at " + count + " users");
+        }
+        ByteBuffer old = index;
+        index = ByteBuffer.allocateDirect(capacity * INDEX_ENTRY_BYTES);
+        indexMask = capacity - 1;
+        for (int position = 0; position < old.capacity(); position += INDEX_ENTRY_BYTES) {
+            long slot = old.getLong(position + 8);
+            if (slot != 0) {
+                long id = old.getLong(position);
+                int entry = (int) mix(id) & indexMask;
+                while (index.getLong(entry * INDEX_ENTRY_BYTES + 8) != 0) {
+                    entry = (entry + 1) & indexMask;
+                }
+                index.putLong(entry * INDEX_ENTRY_BYTES, id);
+                index.putLong(entry * INDEX_ENTRY_BYTES + 8, slot);
+            }
+        }
+    }
+
+    // The finalizer of MurmurHash3, spreading sequential ids over the index
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
+
+// UserStoreBenchmark class comparing the user store against HashMap and ConcurrentHashMap at 10M users
+class UserStoreBenchmark {
+    private static final int USERS = 10_000_000;
+    private static final int LOOKUPS = 20_000_000;
+
+    // Operations the benchmark needs from each store
+    private interface Store {
+        void put(long id, User user);
+
+        User get(long id);
+    }
+
+    public static void run() {
+        // The users are created once and shared, so the heap measured per store is only the store itself
+        User[] users = new User[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = new User(i + 1, "user", "user@mail.com");
+        }
+        run("HashMap<Long, User>", users, () -> {
+            Map<Long, User> map = new HashMap<>();
+            return new Store() {
+                public void put(long id, User user) {
+                    map.put(id, user);
+                }
+
+                public User get(long id) {
+                    return map.get(id);
+                }
+            };
+        });
+        run("ConcurrentHashMap<Long, User>", users, () -> {
+            Map<Long, User> map = new ConcurrentHashMap<>();
+            return new Store() {
+                public void put(long id, User user) {
+                    map.put(id, user);
+                }
+
+                public User get(long id) {
+                    return map.get(id);
+                }
+            };
+        });
+        run("ConcurrentLongObjectMap<User>", users, () -> {
+            ConcurrentLongObjectMap<User> map = new ConcurrentLongObjectMap<>();
+            return new Store() {
+                public void put(long id, User user) {
+                    map.put(id, user);
+                }
+
+                public User get(long id) {
+                    return map.get(id);
+                }
+            };
+        });
+    }
+
+    private static void run(String name, User[] users, Supplier<Store> factory) {
+        // A short warm-up round lets the JIT compile the store before the measured round
+        fill(factory.get(), users, USERS / 10);
+
+        long heapBefore = usedHeap();
+        Store store = factory.get();
+        long start = System.nanoTime();
+        fill(store, users, users.length);
+        double putSeconds = (System.nanoTime() - start) / 1e9;
+        long heapPerEntry = (usedHeap() - heapBefore) / users.length;
+
+        long checksum = 0;
+        start = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < LOOKUPS; i++) {
+            checksum += store.get(random.nextInt(users.length) + 1).getId();
+        }
+        double getSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-30s put %5.1f M ops/s, random get %5.1f M ops/s, %3d bytes per entry (%d)%n", name,
+                users.length / putSeconds / 1e6, LOOKUPS / getSeconds / 1e6, heapPerEntry, checksum % 10);
+    }
+
+    private static void fill(Store store, User[] users, int count) {
+        for (int i = 0; i < count; i++) {
+            store.put(users[i].getId(), users[i]);
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
 }
 
-// Concrete implementation of UserDAO using in-memory storage (for
-// demonstration)
-class InMemoryUserDAO implements UserDAO {
-    // In-memory storage for user data
-    private Map<Long, User> users = new HashMap<>();
+// OffHeapUserBenchmark class comparing heap, GC time and lookups of the on-heap and off-heap user stores
+class OffHeapUserBenchmark {
+    private static final int USERS = 10_000_000;
+    private static final int LOOKUPS = 5_000_000;
+
+    public static void run(String store) {
+        UserDAO userDao = store.equals("offheap") ? new OffHeapUserDAO() : new InMemoryUserDAO();
+        long heapBefore = usedHeap();
+        long gcBefore = gcMillis();
+        long start = System.nanoTime();
+        for (int i = 1; i <= USERS; i++) {
+            userDao.addUser(new User(i, "user" + i, "user" + i + "@mail.com"));
+        }
+        double loadSeconds = (System.nanoTime() - start) / 1e9;
+        long gcLoad = gcMillis() - gcBefore;
+
+        long checksum = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        gcBefore = gcMillis();
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            checksum += userDao.getUserById(random.nextInt(USERS) + 1).getEmail().length();
+        }
+        double lookupSeconds = (System.nanoTime() - start) / 1e9;
+        long gcLookups = gcMillis() - gcBefore;
+
+        long heapMb = (usedHeap() - heapBefore) >> 20;
+        long directMb = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                directMb = pool.getMemoryUsed() >> 20;
+            }
+        }
+        System.out.printf("%s: %d users, heap %d MB, direct %d MB, load %.1f s (GC %d ms), "
+                + "%.1f M lookups/s (GC %d ms) (%d)%n", userDao.getClass().getSimpleName(), USERS, heapMb,
+                directMb, loadSeconds, gcLoad, LOOKUPS / lookupSeconds / 1e6, gcLookups, checksum % 10);
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += collector.getCollectionTime();
+        }
+        return total;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
+
+// UserWriteAheadLog class, the write-ahead log of FileUserDAO. Records are framed with their length and a
+// CRC32. One writer thread drains every queued record, writes the batch with a single FileChannel write
+// and forces it once, so concurrent writers share each fsync (group commit). If a write or force fails, the
+// log is cut back to the end of the last forced batch and every later append fails with the same error,
+// so no record is ever written after torn bytes
+class UserWriteAheadLog {
+    private static final int MAX_BATCH = 4096;
+
+    // Callback for each intact record found when replaying the log
+    @FunctionalInterface
+    interface RecordHandler {
+        void onRecord(ByteBuffer record);
+    }
+
+    private final FileChannel channel;
+    private final BlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20); // Used only by the writer thread
+    private long syncedBytes; // Writer thread only: where the last forced batch ends
+    private IOException failure; // Writer thread only: the error that stopped appends
+    private volatile long sizeBytes;
+    private volatile long syncCount;
+    private volatile boolean closed;
+
+    // One queued record, or a reset of the log when record is null
+    private static final class Command {
+        final byte[] record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Command(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    // Constructor to open the log, replay its intact records and cut off a torn tail
+    UserWriteAheadLog(Path file, RecordHandler handler) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long validBytes = 0;
+        if (channel.size() > 0) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 checksum = new CRC32();
+            while (mapped.remaining() >= 8) {
+                int length = mapped.getInt(mapped.position());
+                if (length <= 0 || length > mapped.remaining() - 8) {
+                    break;
+                }
+                ByteBuffer record = mapped.slice(mapped.position() + 8, length);
+                checksum.reset();
+                checksum.update(record.duplicate());
+                if ((int) checksum.getValue() != mapped.getInt(mapped.position() + 4)) {
+                    break; // Torn by a crash
+                }
+                handler.onRecord(record);
+                mapped.position(mapped.position() + 8 + length);
+                validBytes = mapped.position();
+            }
+        }
+        channel.truncate(validBytes);
+        channel.position(validBytes);
+        sizeBytes = validBytes;
+        syncedBytes = validBytes;
+        writer = new Thread(this::writeLoop, "user-wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Method to frame a payload: length, CRC32 of the payload, then the payload itself
+    static byte[] frame(ByteBuffer payload) {
+        int length = payload.remaining();
+        ByteBuffer record = ByteBuffer.allocate(8 + length);
+        CRC32 checksum = new CRC32();
+        checksum.update(payload.duplicate());
+        record.putInt(length).putInt((int) checksum.getValue()).put(payload);
+        return record.array();
+    }
+
+    // Method to append a framed record; the future completes once it is on disk
+    CompletableFuture<Void> append(byte[] record) {
+        return enqueue(new Command(record));
+    }
+
+    // Method to empty the log once everything in it has been checkpointed
+    CompletableFuture<Void> reset() {
+        return enqueue(new Command(null));
+    }
+
+    long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    long getSyncCount() {
+        return syncCount;
+    }
+
+    void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private CompletableFuture<Void> enqueue(Command command) {
+        if (closed) {
+            command.done.completeExceptionally(new IOException("Write-ahead log is closed"));
+        } else {
+            queue.add(command);
+        }
+        return command.done;
+    }
+
+    // Method run by the writer thread: drain, write and force batches until closed and empty
+    private void writeLoop() {
+        List<Command> batch = new ArrayList<>(MAX_BATCH);
+        List<Command> appended = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Command first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Command command : batch) {
+                    if (command.record == null) {
+                        commit(appended);
+                        channel.truncate(0);
+                        channel.position(0);
+                        sizeBytes = 0;
+                        syncedBytes = 0;
+                        command.done.complete(null);
+                        continue;
+                    }
+                    if (failure != null) {
+                        command.done.completeExceptionally(failure);
+                        continue;
+                    }
+                    if (buffer.remaining() < command.record.length) {
+                        writeBuffer();
+                    }
+                    if (command.record.length > buffer.capacity()) {
+                        channel.write(ByteBuffer.wrap(command.record));
+                    } else {
+                        buffer.put(command.record);
+                    }
+                    sizeBytes += command.record.length;
+                    appended.add(command);
+                }
+                commit(appended);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                for (Command command : batch) {
+                    command.done.completeExceptionally(failure);
+                }
+                appended.clear();
+                buffer.clear();
+                discardUnsynced();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Command> appended) throws IOException {
+        if (appended.isEmpty()) {
+            return;
+        }
+        writeBuffer();
+        channel.force(false);
+        syncedBytes = channel.position();
+        syncCount++;
+        for (Command command : appended) {
+            command.done.complete(null);
+        }
+        appended.clear();
+    }
+
+    // Method to cut off whatever a failed batch wrote; if even that fails, appends stay stopped anyway
+    private void discardUnsynced() {
+        try {
+            channel.truncate(syncedBytes);
+            channel.position(syncedBytes);
+            sizeBytes = syncedBytes;
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+// FileUserDAO class storing users in memory-mapped files so they survive restarts. Users are fixed-size
+// records in users.dat, found through an open-addressing hash index in users.idx; both files are mapped,
+// so opening the store maps them instead of parsing them. Every change is written to a write-ahead log,
+// group-committed, and applied to the mapped files in place once it is durable, before the call returns;
+// a change the log could not write is never applied, and the store refuses changes after it. A checkpoint
+// forces the mapped files, records the last logged change it covers and empties the log. Opening replays
+// the log past the last checkpoint. Since the OS may write mapped pages at any time, a crash can leave the
+// index half-updated; a store that was not closed cleanly therefore rebuilds its index by scanning the
+// checksummed records before replaying the log. A write that had not returned when the process crashed
+// may or may not survive it. The secondary indexes on username and email are held in memory and saved to
+// users.sidx at every checkpoint, tagged with the checkpoint they match. Opening maps the saved hash tables,
+// reads the ids in value order, and indexes again the users the log replay changed. Without a snapshot of
+// the last checkpoint, for example when saving it failed, opening builds the indexes from the records on a
+// background thread instead, and returns once the files are mapped. Until that build finishes, changes and
+// lookups by username or email wait for it, for about ten seconds per million users; lookups by id do not
+// wait. Nothing changes the store during the build, so the build reads the records without taking the lock
+class FileUserDAO implements UserDAO {
+    private static final int MAGIC = 0x55534552; // "USER"
+    private static final int HEADER_BYTES = 4096; // Magic, clean flag, slot count, checkpointed LSN
+    private static final int CLEAN_OFFSET = 4;
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int CHECKPOINT_LSN_OFFSET = 16;
+    private static final int RECORD_BYTES = 256;
+    private static final int STATUS_OFFSET = 4; // After the record's CRC32
+    private static final int USERNAME_LENGTH_OFFSET = 5;
+    private static final int EMAIL_LENGTH_OFFSET = 6;
+    private static final int ID_OFFSET = 8;
+    private static final int USERNAME_OFFSET = 16;
+    private static final int EMAIL_OFFSET = 96;
+    private static final int MAX_USERNAME_BYTES = EMAIL_OFFSET - USERNAME_OFFSET;
+    private static final int MAX_EMAIL_BYTES = RECORD_BYTES - EMAIL_OFFSET;
+    private static final int NULL_LENGTH = 0xFF;
+    private static final byte LIVE = 1;
+    private static final long DEFAULT_REGION_BYTES = 1L << 30; // Records are mapped 1 GB at a time
+    private static final int INDEX_HEADER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 16; // Id, then slot + 1 (0 marks a free entry)
+    private static final long CHECKPOINT_WAL_BYTES = 64L << 20;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final Path directory;
+    private final long regionBytes;
+    private final FileChannel dataChannel;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private final UserWriteAheadLog wal;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final CRC32 checksum = new CRC32(); // Used under the write lock only
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int indexMask;
+    private int count;
+    private int slotCount; // Slots ever used; free ones below it are reused first
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private long lastLsn;
+    private IOException failure; // Set once the log fails to write a change; the store refuses changes after
+    // Changes logged but not yet applied, in log order, and by id and by the username and email they claim,
+    // so that uniqueness is checked against the state once they are applied
+    private final Deque<PendingChange> unapplied = new ArrayDeque<>();
+    private final Map<Long, PendingChange> pendingById = new HashMap<>();
+    private final Map<String, PendingChange> pendingUsernames = new HashMap<>();
+    private final Map<String, PendingChange> pendingEmails = new HashMap<>();
+    private final CompletableFuture<UserIndexes> indexes = new CompletableFuture<>(); // Built in the background
+
+    // A change that has been logged and not yet applied; null values for a delete
+    private static final class PendingChange {
+        final ByteBuffer change;
+        final CompletableFuture<Void> durable;
+        final long id;
+        final String username;
+        final String email;
+
+        PendingChange(ByteBuffer change, CompletableFuture<Void> durable, long id, String username,
+                String email) {
+            this.change = change;
+            this.durable = durable;
+            this.id = id;
+            this.username = username;
+            this.email = email;
+        }
+    }
+
+    private FileUserDAO(Path directory, long regionBytes) throws IOException {
+        if (regionBytes % RECORD_BYTES != 0 || regionBytes < HEADER_BYTES + RECORD_BYTES
+                || regionBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid region size: " + regionBytes);
+        }
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.regionBytes = regionBytes;
+        dataChannel = FileChannel.open(directory.resolve("users.dat"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = dataChannel.size() == 0;
+        // Map every region the file already has, so records past the first region can be read at once
+        do {
+            mapRegion();
+        } while (regions.size() * regionBytes < dataChannel.size());
+        MappedByteBuffer header = regions.get(0);
+        if (created) {
+            header.putInt(0, MAGIC);
+            header.putInt(CLEAN_OFFSET, 1);
+        } else if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a user store: " + directory);
+        }
+        boolean clean = header.getInt(CLEAN_OFFSET) == 1;
+        long checkpointLsn = header.getLong(CHECKPOINT_LSN_OFFSET);
+        lastLsn = checkpointLsn;
+        Path freeList = directory.resolve("users.free");
+        if (created) {
+            createIndex(1024);
+        } else if (clean && Files.exists(directory.resolve("users.idx")) && Files.exists(freeList)) {
+            openIndex();
+            slotCount = header.getInt(SLOT_COUNT_OFFSET);
+            loadFreeSlots(freeList);
+            count = slotCount - freeCount;
+        } else {
+            rebuildFromRecords();
+        }
+        // From here until close, a crash leaves the store marked unclean
+        Files.deleteIfExists(freeList);
+        header.putInt(CLEAN_OFFSET, 0);
+        header.force(0, HEADER_BYTES);
+
+        Set<Long> replayed = new HashSet<>();
+        wal = new UserWriteAheadLog(directory.resolve("users.wal"), record -> {
+            long lsn = record.getLong();
+            if (lsn > checkpointLsn) {
+                replayed.add(record.getLong(record.position() + 1));
+                apply(record);
+                lastLsn = Math.max(lastLsn, lsn);
+            }
+        });
+        UserIndexes saved = loadIndexes(checkpointLsn, replayed);
+        if (saved != null) {
+            indexes.complete(saved);
+        } else {
+            Thread builder = new Thread(this::buildIndexes, "user-index-builder");
+            builder.setDaemon(true);
+            builder.start();
+        }
+    }
+
+    // Method to open (or create) a store in the directory
+    public static FileUserDAO open(Path directory) throws IOException {
+        return new FileUserDAO(directory, DEFAULT_REGION_BYTES);
+    }
+
+    // Method to open a store whose records are mapped in regions of the given size, a multiple of 256 bytes
+    static FileUserDAO open(Path directory, long regionBytes) throws IOException {
+        return new FileUserDAO(directory, regionBytes);
+    }
 
     @Override
     public void addUser(User user) {
-        // Add user to the in-memory storage
-        users.put(user.getId(), user);
+        // Add or replace the user, as the in-memory store does
+        updateUser(user);
     }
 
     @Override
     public User getUserById(long id) {
-        // Retrieve user from the in-memory storage by ID
-        return users.get(id);
+        lock.readLock().lock();
+        try {
+            return readUser(id);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
     public void updateUser(User user) {
-        // Update user in the in-memory storage
-        users.put(user.getId(), user);
+        byte[] username = encode(user.getUsername(), MAX_USERNAME_BYTES);
+        byte[] email = encode(user.getEmail(), MAX_EMAIL_BYTES);
+        ByteBuffer change = ByteBuffer.allocate(8 + 1 + 8 + 2 * 2 + length(username) + length(email));
+        change.putLong(0).put(PUT).putLong(user.getId());
+        putString(change, username);
+        putString(change, email);
+        log(change.flip(), user.getUsername(), user.getEmail());
     }
 
     @Override
     public void deleteUser(long id) {
-        // Delete user from the in-memory storage by ID
-        users.remove(id);
+        ByteBuffer change = ByteBuffer.allocate(8 + 1 + 8);
+        change.putLong(0).put(DELETE).putLong(id);
+        log(change.flip(), null, null);
+    }
+
+    @Override
+    public User findByUsername(String username) {
+        UserIndexes built = indexes();
+        lock.readLock().lock();
+        try {
+            Long id = built.findIdByUsername(username);
+            return id == null ? null : readUser(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public User findByEmail(String email) {
+        UserIndexes built = indexes();
+        lock.readLock().lock();
+        try {
+            Long id = built.findIdByEmail(email);
+            return id == null ? null : readUser(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<User> findByUsernamePrefix(String prefix, int limit) {
+        UserIndexes built = indexes();
+        lock.readLock().lock();
+        try {
+            return readUsers(built.findIdsByUsernamePrefix(prefix, limit));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<User> findByEmailPrefix(String prefix, int limit) {
+        UserIndexes built = indexes();
+        lock.readLock().lock();
+        try {
+            return readUsers(built.findIdsByEmailPrefix(prefix, limit));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Method to get how many users are stored
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Method to get how many times the write-ahead log has been forced to disk
+    public long getLogSyncCount() {
+        return wal.getSyncCount();
+    }
+
+    // Method to force the mapped files to disk, note the last change they contain and empty the log
+    public void checkpoint() {
+        lock.writeLock().lock();
+        try {
+            // Apply every logged change (or drop it, if the log failed); the log completes them in order
+            if (!unapplied.isEmpty()) {
+                unapplied.peekLast().durable.exceptionally(e -> null).join();
+                applyDurable();
+            }
+            for (MappedByteBuffer region : regions) {
+                region.force();
+            }
+            index.force();
+            if (indexes.isDone() && !indexes.isCompletedExceptionally()) {
+                saveIndexes(indexes.join(), lastLsn);
+            }
+            MappedByteBuffer header = regions.get(0);
+            header.putLong(CHECKPOINT_LSN_OFFSET, lastLsn);
+            header.force(0, HEADER_BYTES);
+            wal.reset().join();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Method to checkpoint, save the free slots and mark the store clean, so the next open maps it as is
+    public void close() throws IOException {
+        indexes.exceptionally(e -> null).join(); // The build reads the mapped files
+        checkpoint();
+        lock.writeLock().lock();
+        try {
+            ByteBuffer free = ByteBuffer.allocate(freeCount * 4);
+            free.asIntBuffer().put(freeSlots, 0, freeCount);
+            try (FileChannel channel = FileChannel.open(directory.resolve("users.free"), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (free.hasRemaining()) {
+                    channel.write(free);
+                }
+                channel.force(true);
+            }
+            MappedByteBuffer header = regions.get(0);
+            header.putInt(CLEAN_OFFSET, 1);
+            header.force(0, HEADER_BYTES);
+            wal.close();
+            indexChannel.close();
+            dataChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Method to log a change, with its new username and email (null for a delete), and apply it to the mapped
+    // files and the secondary indexes once it is durable. The caller waits for the log outside the lock, so
+    // concurrent changes share an fsync; whichever caller then takes the lock first applies every durable
+    // change, in log order. A change the log failed to write is never applied, and from then on the store
+    // refuses changes
+    private void log(ByteBuffer change, String username, String email) {
+        long id = change.getLong(9);
+        UserIndexes built = indexes();
+        PendingChange pending;
+        lock.writeLock().lock();
+        try {
+            if (failure != null) {
+                throw new UncheckedIOException("The write-ahead log has failed", failure);
+            }
+            checkUnique(id, username, built::findIdByUsername, pendingUsernames, logged -> logged.username,
+                    "Username");
+            checkUnique(id, email, built::findIdByEmail, pendingEmails, logged -> logged.email, "Email");
+            change.putLong(0, ++lastLsn);
+            pending = new PendingChange(change, wal.append(UserWriteAheadLog.frame(change.duplicate())), id,
+                    username, email);
+            unapplied.add(pending);
+            pendingById.put(id, pending);
+            if (username != null) {
+                pendingUsernames.put(username, pending);
+            }
+            if (email != null) {
+                pendingEmails.put(email, pending);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            pending.durable.join();
+        } catch (CompletionException e) {
+            // Reported below, once the change has been dropped in order
+        }
+        lock.writeLock().lock();
+        try {
+            applyDurable();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (pending.durable.isCompletedExceptionally()) {
+            throw new UncheckedIOException("Could not log the change to user " + id, failure);
+        }
+        if (wal.getSizeBytes() > CHECKPOINT_WAL_BYTES) {
+            checkpoint();
+        }
+    }
+
+    // Method to apply, in log order, the logged changes the log has finished with; a change it failed to write
+    // is dropped and stops the store taking more
+    private void applyDurable() {
+        while (!unapplied.isEmpty() && unapplied.peek().durable.isDone()) {
+            PendingChange pending = unapplied.poll();
+            if (pending.durable.isCompletedExceptionally()) {
+                if (failure == null) {
+                    Throwable cause = pending.durable.handle((result, e) -> e instanceof CompletionException
+                            ? e.getCause() : e).join();
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+            } else {
+                int slot = findSlot(pending.id);
+                indexes().update(pending.id, readField(slot, USERNAME_LENGTH_OFFSET, USERNAME_OFFSET),
+                        readField(slot, EMAIL_LENGTH_OFFSET, EMAIL_OFFSET), pending.username, pending.email,
+                        () -> apply(pending.change.position(8)));
+            }
+            pendingById.remove(pending.id, pending);
+            if (pending.username != null) {
+                pendingUsernames.remove(pending.username, pending);
+            }
+            if (pending.email != null) {
+                pendingEmails.remove(pending.email, pending);
+            }
+        }
+    }
+
+    // Method to reject a value that another user has once every logged change is applied: the latest pending
+    // change to claim it, if that is still its user's latest change, or else its indexed owner, unless a
+    // pending change of that owner gives it up
+    private void checkUnique(long id, String value, Function<String, Long> indexedOwner,
+            Map<String, PendingChange> claims, Function<PendingChange, String> field, String name) {
+        if (value == null) {
+            return;
+        }
+        Long owner;
+        PendingChange claim = claims.get(value);
+        if (claim != null && pendingById.get(claim.id) == claim) {
+            owner = claim.id;
+        } else {
+            owner = indexedOwner.apply(value);
+            PendingChange ownerChange = owner == null ? null : pendingById.get(owner);
+            if (ownerChange != null && !value.equals(field.apply(ownerChange))) {
+                owner = null; // Its pending change gives the value up
+            }
+        }
+        if (owner != null && owner != id) {
+            throw new IllegalArgumentException(name + " " + value + " already belongs to user " + owner);
+        }
+    }
+
+    // Method to wait for the secondary indexes to be built
+    private UserIndexes indexes() {
+        return indexes.join();
+    }
+
+    // Method to build the secondary indexes from the users in the id index, on the builder thread
+    private void buildIndexes() {
+        try {
+            UserIndexes built = newIndexes();
+            for (int entry = 0; entry <= indexMask; entry++) {
+                int position = INDEX_HEADER_BYTES + entry * INDEX_ENTRY_BYTES;
+                int slot = (int) (index.getLong(position + 8) - 1);
+                if (slot >= 0) {
+                    built.add(index.getLong(position), readField(slot, USERNAME_LENGTH_OFFSET, USERNAME_OFFSET),
+                            readField(slot, EMAIL_LENGTH_OFFSET, EMAIL_OFFSET));
+                }
+            }
+            indexes.complete(built);
+        } catch (Throwable e) {
+            indexes.completeExceptionally(e);
+        }
+    }
+
+    // Method to save the secondary indexes as of the checkpoint at the given log position, replacing the
+    // previous snapshot atomically. A snapshot that fails to save is left behind; it no longer matches the
+    // checkpoint, so the next open builds the indexes from the records instead
+    private void saveIndexes(UserIndexes built, long lsn) {
+        Path temporary = directory.resolve("users.sidx.tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                SecondaryIndex.writeFully(channel, ByteBuffer.allocate(8).putLong(0, lsn));
+                built.save(channel);
+                channel.force(true);
+            }
+            Files.move(temporary, directory.resolve("users.sidx"), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // Overwritten by the next checkpoint
+            }
+        }
+    }
+
+    // Method to load the secondary indexes saved by the checkpoint at the given log position, leaving out the
+    // users the log replay changed and indexing them again as they are now; null if there is no intact
+    // snapshot of that checkpoint
+    private UserIndexes loadIndexes(long checkpointLsn, Set<Long> replayed) {
+        Path file = directory.resolve("users.sidx");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        // Opened for writing only because a private mapping needs it; the file itself is never changed
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer lsn = ByteBuffer.allocate(8);
+            SecondaryIndex.readFully(channel, lsn);
+            if (lsn.getLong(0) != checkpointLsn) {
+                return null;
+            }
+            UserIndexes loaded = newIndexes();
+            loaded.load(channel, replayed);
+            for (long id : replayed) {
+                int slot = findSlot(id);
+                if (slot >= 0) {
+                    loaded.add(id, readField(slot, USERNAME_LENGTH_OFFSET, USERNAME_OFFSET),
+                            readField(slot, EMAIL_LENGTH_OFFSET, EMAIL_OFFSET));
+                }
+            }
+            return loaded;
+        } catch (IOException | RuntimeException e) {
+            return null; // Built from the records instead
+        }
+    }
+
+    private UserIndexes newIndexes() {
+        return new UserIndexes(id -> readField(findSlot(id), USERNAME_LENGTH_OFFSET, USERNAME_OFFSET),
+                id -> readField(findSlot(id), EMAIL_LENGTH_OFFSET, EMAIL_OFFSET));
+    }
+
+    private User readUser(long id) {
+        int slot = findSlot(id);
+        return slot < 0 ? null : new User(id, readField(slot, USERNAME_LENGTH_OFFSET, USERNAME_OFFSET),
+                readField(slot, EMAIL_LENGTH_OFFSET, EMAIL_OFFSET));
+    }
+
+    private List<User> readUsers(List<Long> ids) {
+        List<User> found = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            found.add(readUser(id));
+        }
+        return found;
+    }
+
+    // Method to decode one string field of a slot's record, or null if the slot is -1 or the field is null
+    private String readField(int slot, int lengthOffset, int offset) {
+        if (slot < 0) {
+            return null;
+        }
+        long position = recordPosition(slot);
+        MappedByteBuffer region = regions.get((int) (position / regionBytes));
+        int start = (int) (position % regionBytes);
+        int length = region.get(start + lengthOffset) & 0xFF;
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        region.get(start + offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Method to apply a logged change (positioned after its LSN) to the mapped files
+    private void apply(ByteBuffer change) {
+        byte operation = change.get();
+        long id = change.getLong();
+        int slot = findSlot(id);
+        if (operation == DELETE) {
+            if (slot >= 0) {
+                writeStatus(slot, (byte) 0);
+                removeIndex(id);
+                if (freeCount == freeSlots.length) {
+                    freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+                }
+                freeSlots[freeCount++] = slot;
+                count--;
+            }
+            return;
+        }
+        byte[] username = getString(change);
+        byte[] email = getString(change);
+        if (slot < 0) {
+            slot = freeCount > 0 ? freeSlots[--freeCount] : slotCount++;
+            regions.get(0).putInt(SLOT_COUNT_OFFSET, slotCount);
+            while (recordPosition(slot) + RECORD_BYTES > regions.size() * regionBytes) {
+                mapRegion();
+            }
+            insertIndex(id, slot);
+            count++;
+        }
+        writeRecord(slot, id, username, email);
+    }
+
+    private void writeRecord(int slot, long id, byte[] username, byte[] email) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+        record.put(STATUS_OFFSET, LIVE);
+        record.put(USERNAME_LENGTH_OFFSET, (byte) (username == null ? NULL_LENGTH : username.length));
+        record.put(EMAIL_LENGTH_OFFSET, (byte) (email == null ? NULL_LENGTH : email.length));
+        record.putLong(ID_OFFSET, id);
+        if (username != null) {
+            record.put(USERNAME_OFFSET, username);
+        }
+        if (email != null) {
+            record.put(EMAIL_OFFSET, email);
+        }
+        checksum.reset();
+        checksum.update(record.array(), STATUS_OFFSET, RECORD_BYTES - STATUS_OFFSET);
+        record.putInt(0, (int) checksum.getValue());
+        long position = recordPosition(slot);
+        regions.get((int) (position / regionBytes)).put((int) (position % regionBytes), record.array());
+    }
+
+    private void writeStatus(int slot, byte status) {
+        long position = recordPosition(slot) + STATUS_OFFSET;
+        regions.get((int) (position / regionBytes)).put((int) (position % regionBytes), status);
+    }
+
+    private static long recordPosition(int slot) {
+        return HEADER_BYTES + (long) slot * RECORD_BYTES;
+    }
+
+    private void mapRegion() {
+        try {
+            regions.add(dataChannel.map(FileChannel.MapMode.READ_WRITE, regions.size() * regionBytes,
+                    regionBytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Method to rebuild the index, slot count and free slots from the records whose checksums hold
+    private void rebuildFromRecords() throws IOException {
+        long fileBytes = dataChannel.size();
+        int slots = (int) ((fileBytes - HEADER_BYTES) / RECORD_BYTES);
+        createIndex(regions.get(0).getInt(SLOT_COUNT_OFFSET)); // Grows if the slot count was stale
+        byte[] record = new byte[RECORD_BYTES];
+        int highestLive = -1;
+        for (int slot = 0; slot < slots; slot++) {
+            long position = recordPosition(slot);
+            MappedByteBuffer region = regions.get((int) (position / regionBytes));
+            int offset = (int) (position % regionBytes);
+            if (region.get(offset + STATUS_OFFSET) != LIVE) {
+                continue;
+            }
+            region.get(offset, record);
+            checksum.reset();
+            checksum.update(record, STATUS_OFFSET, RECORD_BYTES - STATUS_OFFSET);
+            long id = region.getLong(offset + ID_OFFSET);
+            if ((int) checksum.getValue() != region.getInt(offset) || findSlot(id) >= 0) {
+                // Torn, or a copy whose delete never reached the disk; the log holds the changes that wrote
+                // them. Clear it, so a later rebuild cannot take it for a live user once the log is emptied
+                region.put(offset + STATUS_OFFSET, (byte) 0);
+                continue;
+            }
+            insertIndex(id, slot);
+            count++;
+            highestLive = slot;
+        }
+        slotCount = highestLive + 1;
+        for (int slot = 0; slot < slotCount; slot++) {
+            long position = recordPosition(slot) + STATUS_OFFSET;
+            if (regions.get((int) (position / regionBytes)).get((int) (position % regionBytes)) != LIVE) {
+                if (freeCount == freeSlots.length) {
+                    freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+                }
+                freeSlots[freeCount++] = slot;
+            }
+        }
+        regions.get(0).putInt(SLOT_COUNT_OFFSET, slotCount);
+    }
+
+    private void loadFreeSlots(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        freeCount = bytes.remaining() / 4;
+        freeSlots = new int[Math.max(16, freeCount)];
+        bytes.asIntBuffer().get(freeSlots, 0, freeCount);
+    }
+
+    private void openIndex() throws IOException {
+        indexChannel = FileChannel.open(directory.resolve("users.idx"), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+        indexMask = (int) index.getLong(0) - 1;
+    }
+
+    // Method to create an empty index with room for the given number of users, replacing any existing one
+    private void createIndex(int expectedUsers) throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(1024, (int) (expectedUsers / 0.7)) - 1) << 1;
+        Path temporary = directory.resolve("users.idx.tmp");
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                INDEX_HEADER_BYTES + (long) capacity * INDEX_ENTRY_BYTES);
+        mapped.putLong(0, capacity);
+        Files.move(temporary, directory.resolve("users.idx"), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        if (indexChannel != null) {
+            indexChannel.close();
+        }
+        indexChannel = channel;
+        index = mapped;
+        indexMask = capacity - 1;
+    }
+
+    // Method to find the user's slot through the index, or -1 if the id is not stored
+    private int findSlot(long id) {
+        int position = indexPosition(id);
+        return position < 0 ? -1 : (int) (index.getLong(position + 8) - 1);
+    }
+
+    private int indexPosition(long id) {
+        int entry = (int) mix(id) & indexMask;
+        while (true) {
+            int position = INDEX_HEADER_BYTES + entry * INDEX_ENTRY_BYTES;
+            if (index.getLong(position + 8) == 0) {
+                return -1;
+            }
+            if (index.getLong(position) == id) {
+                return position;
+            }
+            entry = (entry + 1) & indexMask;
+        }
+    }
+
+    private void insertIndex(long id, int slot) {
+        if (count + 1 > (indexMask + 1) * 0.7) {
+            growIndex();
+        }
+        int entry = (int) mix(id) & indexMask;
+        while (index.getLong(INDEX_HEADER_BYTES + entry * INDEX_ENTRY_BYTES + 8) != 0) {
+            entry = (entry + 1) & indexMask;
+        }
+        index.putLong(INDEX_HEADER_BYTES + entry * INDEX_ENTRY_BYTES, id);
+        index.putLong(INDEX_HEADER_BYTES + entry * INDEX_ENTRY_BYTES + 8, slot + 1L);
+    }
+
+    // Method to remove the id's index entry, shifting later entries of the probe run back into the gap so
+    // that the index needs no tombstones
+    private void removeIndex(long id) {
+        int hole = (indexPosition(id) - INDEX_HEADER_BYTES) / INDEX_ENTRY_BYTES;
+        int entry = hole;
+        while (true) {
+            entry = (entry + 1) & indexMask;
+            int position = INDEX_HEADER_BYTES + entry * INDEX_ENTRY_BYTES;
+            long slot = index.getLong(position + 8);
+            if (slot == 0) {
+                break;
+            }
+            long key = index.getLong(position);
+            int home = (int) mix(key) & indexMask;
+            // The entry can fill the hole only if its home is not cyclically within (hole, entry]
+            boolean homeAfterHole = hole <= entry ? hole < home && home <= entry : hole < home || home <= entry;
+            if (!homeAfterHole) {
+                index.putLong(INDEX_HEADER_BYTES + hole * INDEX_ENTRY_BYTES, key);
+                index.putLong(INDEX_HEADER_BYTES + hole * INDEX_ENTRY_BYTES + 8, slot);
+                hole = entry;
+            }
+        }
+        index.putLong(INDEX_HEADER_BYTES + hole * INDEX_ENTRY_BYTES, 0);
+        index.putLong(INDEX_HEADER_BYTES + hole * INDEX_ENTRY_BYTES + 8, 0);
+    }
+
+    // Method to double the index into a new file, swapped in with an atomic rename
+    private void growIndex() {
+        MappedByteBuffer old = index;
+        int oldCapacity = indexMask + 1;
+        try {
+            createIndex(oldCapacity * 2 * 7 / 10 + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int entry = 0; entry < oldCapacity; entry++) {
+            int position = INDEX_HEADER_BYTES + entry * INDEX_ENTRY_BYTES;
+            long slot = old.getLong(position + 8);
+            if (slot != 0) {
+                long id = old.getLong(position);
+                int target = (int) mix(id) & indexMask;
+                while (index.getLong(INDEX_HEADER_BYTES + target * INDEX_ENTRY_BYTES + 8) != 0) {
+                    target = (target + 1) & indexMask;
+                }
+                index.putLong(INDEX_HEADER_BYTES + target * INDEX_ENTRY_BYTES, id);
+                index.putLong(INDEX_HEADER_BYTES + target * INDEX_ENTRY_BYTES + 8, slot);
+            }
+        }
+    }
+
+    private static byte[] encode(String value, int maxBytes) {
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxBytes) {
+            throw new IllegalArgumentException("Field is limited to " + maxBytes + " UTF-8 bytes: " + value);
+        }
+        return bytes;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        out.putShort((short) (bytes == null ? -1 : bytes.length));
+        if (bytes != null) {
+            out.put(bytes);
+        }
+    }
+
+    private static byte[] getString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    // The finalizer of MurmurHash3, spreading sequential ids over the index
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
+
+// FileUserBenchmark class timing group-committed writes, clean and crash startup, and random-read latency
+// of the file-backed user store
+class FileUserBenchmark {
+    private static final int USERS = 1_000_000;
+    private static final int WRITERS = 32;
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void run() throws Exception {
+        Path directory = Files.createTempDirectory("users");
+        try {
+            FileUserDAO userDao = FileUserDAO.open(directory);
+            long start = System.nanoTime();
+            Thread[] writers = new Thread[WRITERS];
+            for (int w = 0; w < WRITERS; w++) {
+                int first = w;
+                writers[w] = new Thread(() -> {
+                    for (int i = first + 1; i <= USERS; i += WRITERS) {
+                        userDao.addUser(new User(i, "user" + i, "user" + i + "@mail.com"));
+                    }
+                });
+                writers[w].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            double loadSeconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Load: %d users from %d threads in %.1f s, %d log fsyncs%n", USERS, WRITERS,
+                    loadSeconds, userDao.getLogSyncCount());
+            userDao.close();
+
+            start = System.nanoTime();
+            FileUserDAO reopened = FileUserDAO.open(directory);
+            System.out.printf("Clean open: %.1f ms, %d users%n", (System.nanoTime() - start) / 1e6,
+                    reopened.size());
+            // The first change waits only if the open found no indexes saved by the last checkpoint
+            reopened.addUser(new User(USERS + 1, "user" + (USERS + 1), "user" + (USERS + 1) + "@mail.com"));
+            System.out.printf("First write after open: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+            reopened.deleteUser(USERS + 1);
+            readLatency(reopened);
+            reopened.close();
+
+            // Clear the clean flag, as a crash would leave it, so the next open rebuilds the index
+            try (FileChannel data = FileChannel.open(directory.resolve("users.dat"), StandardOpenOption.WRITE)) {
+                data.write(ByteBuffer.allocate(4), 4);
+            }
+            start = System.nanoTime();
+            FileUserDAO recovered = FileUserDAO.open(directory);
+            System.out.printf("Open after crash: %.1f ms, %d users%n", (System.nanoTime() - start) / 1e6,
+                    recovered.size());
+            recovered.close();
+        } finally {
+            DataAccessObject.deleteDirectory(directory);
+        }
+    }
+
+    private static void readLatency(FileUserDAO userDao) {
+        long[] nanos = new long[LOOKUPS];
+        long checksum = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < LOOKUPS; i++) {
+            long start = System.nanoTime();
+            User user = userDao.getUserById(random.nextInt(USERS) + 1);
+            nanos[i] = System.nanoTime() - start;
+            checksum += user.getEmail().length();
+        }
+        Arrays.sort(nanos);
+        System.out.printf("Random reads: p50 %.2f us, p99 %.2f us, p99.9 %.2f us (%d)%n", nanos[LOOKUPS / 2] / 1e3,
+                nanos[LOOKUPS * 99 / 100] / 1e3, nanos[LOOKUPS * 999 / 1000] / 1e3, checksum % 10);
+    }
+}
+
+// UserIndexBenchmark class timing lookups by username, by email and by username prefix against the full
+// scan by id they replace
+class UserIndexBenchmark {
+    private static final int USERS = 1_000_000;
+    private static final int LOOKUPS = 1_000_000;
+    private static final int PREFIX_QUERIES = 100_000;
+
+    public static void run() {
+        run(new InMemoryUserDAO());
+        run(new OffHeapUserDAO());
+    }
+
+    private static void run(UserDAO userDao) {
+        long start = System.nanoTime();
+        for (int i = 1; i <= USERS; i++) {
+            userDao.addUser(new User(i, "user" + i, "user" + i + "@mail.com"));
+        }
+        double loadSeconds = (System.nanoTime() - start) / 1e9;
+
+        // One lookup the way callers had to do it before: scan every id
+        start = System.nanoTime();
+        String wanted = "user" + USERS / 2;
+        long found = 0;
+        for (int i = 1; i <= USERS; i++) {
+            if (wanted.equals(userDao.getUserById(i).getUsername())) {
+                found = i;
+            }
+        }
+        double scanMillis = (System.nanoTime() - start) / 1e6;
+
+        long checksum = found;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            checksum += userDao.findByUsername("user" + (random.nextInt(USERS) + 1)).getId();
+        }
+        double usernameSeconds = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            checksum += userDao.findByEmail("user" + (random.nextInt(USERS) + 1) + "@mail.com").getId();
+        }
+        double emailSeconds = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        for (int i = 0; i < PREFIX_QUERIES; i++) {
+            checksum += userDao.findByUsernamePrefix("user" + (random.nextInt(USERS / 10) + 1), 10).size();
+        }
+        double prefixSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: load %.1f s, scan %.0f ms per lookup, by username %.2f us, by email %.2f us, "
+                + "prefix (10 users) %.2f us (%d)%n", userDao.getClass().getSimpleName(), loadSeconds, scanMillis,
+                usernameSeconds * 1e6 / LOOKUPS, emailSeconds * 1e6 / LOOKUPS, prefixSeconds * 1e6 / PREFIX_QUERIES,
+                checksum % 10);
+    }
+}
+
+// FileUserChecks class exercising the file-backed user store's reopen and recovery paths with small
+// regions, so they cross region boundaries with only a few users
+class FileUserChecks {
+    private static final long REGION_BYTES = 64 * 1024; // 240 records past the header, then 256 per region
+
+    public static void run() throws Exception {
+        reopenAcrossRegions();
+        rebuildClearsStaleCopies();
+        savedIndexesAfterCrash();
+    }
+
+    // Method to check that a cleanly closed store can read users in every region straight after reopening
+    private static void reopenAcrossRegions() throws Exception {
+        Path directory = Files.createTempDirectory("users");
+        try {
+            FileUserDAO userDao = FileUserDAO.open(directory, REGION_BYTES);
+            for (int i = 1; i <= 1000; i++) {
+                userDao.addUser(new User(i, "user" + i, "user" + i + "@mail.com"));
+            }
+            userDao.close();
+            FileUserDAO reopened = FileUserDAO.open(directory, REGION_BYTES);
+            for (int i = 1; i <= 1000; i++) {
+                check(("user" + i).equals(reopened.getUserById(i).getUsername()), "user " + i + " after reopen");
+            }
+            reopened.close();
+            System.out.println("Reopen across regions: ok");
+        } finally {
+            DataAccessObject.deleteDirectory(directory);
+        }
+    }
+
+    // Method to check that a rebuild after a crash clears a stale copy of a user left in a free slot, so that
+    // a later rebuild cannot bring the user back once the log no longer holds the user's changes
+    private static void rebuildClearsStaleCopies() throws Exception {
+        Path directory = Files.createTempDirectory("users");
+        Path data = directory.resolve("users.dat");
+        try {
+            FileUserDAO userDao = FileUserDAO.open(directory, REGION_BYTES);
+            userDao.addUser(new User(1, "old", "old@mail.com")); // Slot 0
+            userDao.addUser(new User(2, "second", "second@mail.com")); // Slot 1
+            userDao.addUser(new User(3, "third", "third@mail.com")); // Slot 2
+            ByteBuffer staleRecord = ByteBuffer.allocate(256);
+            try (FileChannel channel = FileChannel.open(data, StandardOpenOption.READ)) {
+                channel.read(staleRecord, 4096);
+            }
+            userDao.updateUser(new User(1, "new", "new@mail.com"));
+            userDao.deleteUser(3);
+            userDao.close();
+            // Leave user 1's old record live in the freed slot 2 and mark the store unclean, as a crash can
+            try (FileChannel channel = FileChannel.open(data, StandardOpenOption.WRITE)) {
+                channel.write(staleRecord.flip(), 4096 + 2 * 256);
+                channel.write(ByteBuffer.allocate(4), 4);
+            }
+
+            // The rebuild indexes slot 0 and frees slot 2; deleting user 1 and closing then empties the log
+            FileUserDAO recovered = FileUserDAO.open(directory, REGION_BYTES);
+            check("new".equals(recovered.getUserById(1).getUsername()), "user 1 after the first rebuild");
+            recovered.deleteUser(1);
+            recovered.close();
+            try (FileChannel channel = FileChannel.open(data, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4), 4); // Clear the clean flag, as another crash would
+            }
+            FileUserDAO rebuiltAgain = FileUserDAO.open(directory, REGION_BYTES);
+            check(rebuiltAgain.getUserById(1) == null, "deleted user 1 after a second rebuild");
+            check(rebuiltAgain.getUserById(2) != null && rebuiltAgain.size() == 1, "user 2 after a second rebuild");
+            rebuiltAgain.close();
+            System.out.println("Rebuild clears stale copies: ok");
+        } finally {
+            DataAccessObject.deleteDirectory(directory);
+        }
+    }
+
+    // Method to check that an open after a crash loads the indexes saved by the last checkpoint and brings the
+    // users changed since then up to date from the log
+    private static void savedIndexesAfterCrash() throws Exception {
+        Path directory = Files.createTempDirectory("users");
+        Path crashed = Files.createTempDirectory("users");
+        try {
+            FileUserDAO userDao = FileUserDAO.open(directory, REGION_BYTES);
+            for (int i = 1; i <= 1000; i++) {
+                userDao.addUser(new User(i, "user" + i, "user" + i + "@mail.com"));
+            }
+            userDao.checkpoint();
+            check(Files.exists(directory.resolve("users.sidx")), "indexes saved at checkpoint");
+            userDao.updateUser(new User(1, "renamed", "renamed@mail.com"));
+            userDao.deleteUser(2);
+            userDao.addUser(new User(1001, "user2", "user2@mail.com")); // Takes the deleted user's values
+            // Copy the files of the open store, as a crash would leave them
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.copy(file, crashed.resolve(file.getFileName()));
+                }
+            }
+            userDao.close();
+
+            FileUserDAO recovered = FileUserDAO.open(crashed, REGION_BYTES);
+            check(recovered.findByUsername("renamed").getId() == 1, "renamed user by its new username");
+            check(recovered.findByUsername("user1") == null, "renamed user's old username released");
+            check(recovered.findByEmail("user2@mail.com").getId() == 1001, "new user by a reused email");
+            check(recovered.findByUsername("user500").getId() == 500, "unchanged user by username");
+            check(recovered.findByUsernamePrefix("user", 2000).size() == 999, "users by username prefix");
+            recovered.addUser(new User(1002, "user1", "user1@mail.com")); // Free since the rename
+            try {
+                recovered.addUser(new User(1003, "user3", "other@mail.com"));
+                check(false, "taken username rejected");
+            } catch (IllegalArgumentException expected) {
+                // user3 still belongs to user 3
+            }
+            recovered.close();
+            System.out.println("Saved indexes after crash: ok");
+        } finally {
+            DataAccessObject.deleteDirectory(directory);
+            DataAccessObject.deleteDirectory(crashed);
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + what);
+        }
     }
 }
 
 public class DataAccessObject {
-    public static void main(String[] args) {
-        // Create an instance of the DAO implementation
-        UserDAO userDao = new InMemoryUserDAO();
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("check")) {
+            FileUserChecks.run();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            if (args.length > 1 && args[1].equals("file")) {
+                FileUserBenchmark.run();
+            } else if (args.length > 1 && args[1].equals("indexes")) {
+                UserIndexBenchmark.run();
+            } else if (args.length > 1) {
+                // Run one store per JVM, so the heap and GC figures are its own
+                OffHeapUserBenchmark.run(args[1]);
+            } else {
+                UserStoreBenchmark.run();
+            }
+            return;
+        }
+
+        // Run the same operations against each DAO implementation
+        demonstrate(new InMemoryUserDAO());
+        demonstrate(new OffHeapUserDAO());
+        Path directory = Files.createTempDirectory("users");
+        FileUserDAO fileUserDao = FileUserDAO.open(directory);
+        demonstrate(fileUserDao);
+        fileUserDao.close();
+        deleteDirectory(directory);
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static void demonstrate(UserDAO userDao) {
+        System.out.println("Using " + userDao.getClass().getSimpleName());
 
         // Create a user
         User newUser = new User(1, "wasif", "wasif@mail.com");
@@ -121,6 +2777,10 @@ public class DataAccessObject {
         System.out.println("Retrieved User: " + retrievedUser.getId() + " " + retrievedUser.getUsername()
                 + " " + retrievedUser.getEmail());
 
+        // Retrieve the user by username, and by email prefix
+        System.out.println("Found by username: " + userDao.findByUsername("wasif").getId());
+        System.out.println("Found by email prefix: " + userDao.findByEmailPrefix("wasif@", 10).size() + " user(s)");
+
         // Update the user's email
         retrievedUser.setEmail("wasi.ali@mail.com");
         userDao.updateUser(retrievedUser);
@@ -4,121 +4,1307 @@
  * Saga pattern typically employs a central orchestrator to coordinate the
  * transaction's steps, the Saga Choreography pattern distributes the
  * coordination responsibility among the participating services themselves.
- * 
+ *
  * @author wasif
  * @version 1.0
  * @since 03/05/2024
  */
 
-// BookingService emits events for booking a room and canceling the booking
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// SagaEvent class, the base of every event the choreographed services exchange
+abstract class SagaEvent {
+    private final long sagaId;
+
+    protected SagaEvent(long sagaId) {
+        this.sagaId = sagaId;
+    }
+
+    public long getSagaId() {
+        return sagaId;
+    }
+}
+
+// Event published to start a hotel booking saga
+class BookingRequestedEvent extends SagaEvent {
+    private final String guestEmail;
+
+    public BookingRequestedEvent(long sagaId, String guestEmail) {
+        super(sagaId);
+        this.guestEmail = guestEmail;
+    }
+
+    public String getGuestEmail() {
+        return guestEmail;
+    }
+}
+
+class RoomBookedEvent extends SagaEvent {
+    private final String guestEmail;
+
+    public RoomBookedEvent(long sagaId, String guestEmail) {
+        super(sagaId);
+        this.guestEmail = guestEmail;
+    }
+
+    public String getGuestEmail() {
+        return guestEmail;
+    }
+}
+
+class RoomBookingCanceledEvent extends SagaEvent {
+    public RoomBookingCanceledEvent(long sagaId) {
+        super(sagaId);
+    }
+}
+
+class PaymentProcessedEvent extends SagaEvent {
+    private final String guestEmail;
+
+    public PaymentProcessedEvent(long sagaId, String guestEmail) {
+        super(sagaId);
+        this.guestEmail = guestEmail;
+    }
+
+    public String getGuestEmail() {
+        return guestEmail;
+    }
+}
+
+class PaymentRefundedEvent extends SagaEvent {
+    public PaymentRefundedEvent(long sagaId) {
+        super(sagaId);
+    }
+}
+
+class ConfirmationSentEvent extends SagaEvent {
+    public ConfirmationSentEvent(long sagaId) {
+        super(sagaId);
+    }
+}
+
+class ConfirmationFailedEvent extends SagaEvent {
+    public ConfirmationFailedEvent(long sagaId) {
+        super(sagaId);
+    }
+}
+
+// EventHandler interface for subscribers; endOfBatch is true on the last event a subscriber takes from the
+// batch it picked up, so a subscriber can buffer work and flush it once per batch
+@FunctionalInterface
+interface EventHandler<E> {
+    void onEvent(E event, long sequence, boolean endOfBatch) throws Exception;
+}
+
+// FailureHandler interface told when a subscriber's handler throws; the subscriber then goes on with its next
+// event, so one bad event never stalls the producers gated on it
+@FunctionalInterface
+interface FailureHandler {
+    void onFailure(String subscriber, Object event, long sequence, Throwable failure);
+}
+
+// Padding classes keeping a Sequence's value on its own cache line, so the cursor and the subscribers'
+// sequences, each written by a different thread, don't invalidate each other
+class SequenceLeftPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequenceLeftPadding {
+    protected volatile long value;
+}
+
+// Sequence class holding a position in the ring buffer
+class Sequence extends SequenceValue {
+    private static final VarHandle VALUE;
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(SequenceValue.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public Sequence(long initialValue) {
+        value = initialValue;
+    }
+
+    public long get() {
+        return (long) VALUE.getAcquire(this);
+    }
+
+    public void set(long newValue) {
+        VALUE.setRelease(this, newValue);
+    }
+
+    public boolean compareAndSet(long expected, long newValue) {
+        return VALUE.compareAndSet(this, expected, newValue);
+    }
+
+    public long incrementAndGet() {
+        return (long) VALUE.getAndAdd(this, 1L) + 1;
+    }
+}
+
+// EventBus class, an in-process ring buffer in the style of the LMAX Disruptor. Producers claim slots with
+// one atomic increment and mark each slot published with a release store. Every subscriber has its own
+// thread and sequence, reads whatever has been published since its last batch in one pass, and hands
+// each event whose type it subscribed to to its handler. Producers wait when the ring is full until the
+// slowest subscriber catches up, which is the bus's backpressure. Handlers never wait: an event a handler
+// publishes while the ring is full goes to its subscriber's overflow queue, which the subscriber keeps
+// retrying between batches. Otherwise two handlers publishing to each other could each wait for the other
+// to consume
+class EventBus {
+    private static final VarHandle AVAILABLE = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final Object[] entries;
+    private final int[] availableRounds; // Per slot, the lap of the ring it was last published in
+    private final int mask;
+    private final int shift;
+    private final Sequence cursor = new Sequence(-1); // Highest claimed sequence
+    private final Sequence cachedGatingSequence = new Sequence(-1);
+    private final List<Subscriber<?>> subscribers = new ArrayList<>();
+    private final FailureHandler failureHandler;
+    private volatile boolean started;
+    private volatile boolean running;
+
+    // Subscriber class running one handler on its own thread
+    private final class Subscriber<E> implements Runnable {
+        private final String name;
+        private final Class<E> type;
+        private final EventHandler<? super E> handler;
+        private final Sequence sequence = new Sequence(-1);
+        private final Queue<Object> overflow = new ConcurrentLinkedQueue<>(); // Added to by this thread only
+        private final Thread thread;
+
+        Subscriber(String name, Class<E> type, EventHandler<? super E> handler) {
+            this.name = name;
+            this.type = type;
+            this.handler = handler;
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long next = sequence.get() + 1;
+            int idleCount = 0;
+            while (true) {
+                // Publish what the handler could not, in order, before taking more events
+                Object pending;
+                while ((pending = overflow.peek()) != null && claimAndPublish(pending)) {
+                    overflow.poll();
+                }
+                long available = highestPublished(next, cursor.get());
+                if (available < next) {
+                    if (!running && isDrained()) {
+                        return; // Closed, and no subscriber has anything left to handle or publish
+                    }
+                    idleCount = idle(idleCount);
+                    continue;
+                }
+                idleCount = 0;
+                // The batch ends at the last event this subscriber takes, not at the last one published
+                long lastMatching = available;
+                while (lastMatching >= next && !type.isInstance(entries[(int) lastMatching & mask])) {
+                    lastMatching--;
+                }
+                for (long current = next; current <= lastMatching; current++) {
+                    Object event = entries[(int) current & mask];
+                    if (type.isInstance(event)) {
+                        try {
+                            handler.onEvent(type.cast(event), current, current == lastMatching);
+                        } catch (Throwable e) {
+                            // Errors too: a subscriber whose thread died would hold its sequence back forever
+                            reportFailure(event, current, e);
+                        }
+                    }
+                }
+                sequence.set(available); // Releases the whole batch of slots to producers at once
+                next = available + 1;
+            }
+        }
+
+        private void reportFailure(Object event, long current, Throwable failure) {
+            try {
+                failureHandler.onFailure(name, event, current, failure);
+            } catch (Throwable e) {
+                // A failing failure handler must not stop the subscriber either
+            }
+        }
+    }
+
+    // Constructor to create a bus whose ring holds the given number of events (a power of two), reporting
+    // handler failures on standard error
+    public EventBus(int capacity) {
+        this(capacity, (subscriber, event, sequence, failure) -> System.err.println("Subscriber " + subscriber
+                + " failed on event " + sequence + ": " + failure));
+    }
+
+    // Constructor to create a bus that reports handler failures to the given handler
+    public EventBus(int capacity, FailureHandler failureHandler) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.entries = new Object[capacity];
+        this.availableRounds = new int[capacity];
+        Arrays.fill(availableRounds, -1);
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfTrailingZeros(capacity);
+        this.failureHandler = failureHandler;
+    }
+
+    // Method to subscribe a handler to every event of the given type; subscribe before starting the bus
+    public <E> void subscribe(String name, Class<E> type, EventHandler<? super E> handler) {
+        if (started) {
+            throw new IllegalStateException("Subscribers must be added before the bus starts");
+        }
+        subscribers.add(new Subscriber<>(name, type, handler));
+    }
+
+    // Method to start the subscriber threads
+    public void start() {
+        started = true;
+        running = true;
+        for (Subscriber<?> subscriber : subscribers) {
+            subscriber.thread.start();
+        }
+    }
+
+    // Method to publish an event, waiting while the ring is full. Called from a handler, it never waits: the
+    // event goes to the subscriber's overflow queue if the ring is full or earlier events are still queued.
+    // Handlers may keep publishing during shutdown, so the sagas already started can finish
+    public void publish(Object event) {
+        Subscriber<?> subscriber = currentSubscriber();
+        if (subscriber != null) {
+            if (!subscriber.overflow.isEmpty() || !claimAndPublish(event)) {
+                subscriber.overflow.add(event);
+            }
+            return;
+        }
+        if (!running) {
+            throw new IllegalStateException("Event bus is not running");
+        }
+        long sequence = cursor.incrementAndGet();
+        long wrapPoint = sequence - entries.length;
+        if (wrapPoint > cachedGatingSequence.get()) {
+            long gatingSequence;
+            int idleCount = 0;
+            while (wrapPoint > (gatingSequence = minimumSubscriberSequence(sequence))) {
+                idleCount = idle(idleCount);
+            }
+            cachedGatingSequence.set(gatingSequence);
+        }
+        int index = (int) sequence & mask;
+        entries[index] = event;
+        AVAILABLE.setRelease(availableRounds, index, (int) (sequence >>> shift));
+    }
+
+    // Method to publish an event only if there is room, for producers that must never block
+    public boolean tryPublish(Object event) {
+        if (!running) {
+            throw new IllegalStateException("Event bus is not running");
+        }
+        return claimAndPublish(event);
+    }
+
+    // Method to stop accepting events and wait for the subscribers to drain what was published
+    public void shutdown() throws InterruptedException {
+        running = false;
+        for (Subscriber<?> subscriber : subscribers) {
+            subscriber.thread.join();
+        }
+    }
+
+    private boolean claimAndPublish(Object event) {
+        long current;
+        do {
+            current = cursor.get();
+            if (current + 1 - entries.length > minimumSubscriberSequence(current)) {
+                return false;
+            }
+        } while (!cursor.compareAndSet(current, current + 1));
+        int index = (int) (current + 1) & mask;
+        entries[index] = event;
+        AVAILABLE.setRelease(availableRounds, index, (int) ((current + 1) >>> shift));
+        return true;
+    }
+
+    private Subscriber<?> currentSubscriber() {
+        Thread current = Thread.currentThread();
+        for (Subscriber<?> subscriber : subscribers) {
+            if (subscriber.thread == current) {
+                return subscriber;
+            }
+        }
+        return null;
+    }
+
+    // Method to check that every subscriber has handled every published event and has nothing queued; only
+    // handlers publish once the bus is shut down, so nothing more can arrive
+    private boolean isDrained() {
+        long published = cursor.get();
+        for (Subscriber<?> subscriber : subscribers) {
+            if (subscriber.sequence.get() < published || !subscriber.overflow.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long minimumSubscriberSequence(long ceiling) {
+        long minimum = ceiling;
+        for (Subscriber<?> subscriber : subscribers) {
+            minimum = Math.min(minimum, subscriber.sequence.get());
+        }
+        return minimum;
+    }
+
+    // Method to find the highest sequence in [low, high] up to which every slot has been published
+    private long highestPublished(long low, long high) {
+        for (long sequence = low; sequence <= high; sequence++) {
+            int round = (int) AVAILABLE.getAcquire(availableRounds, (int) sequence & mask);
+            if (round != (int) (sequence >>> shift)) {
+                return sequence - 1;
+            }
+        }
+        return high;
+    }
+
+    // Method to wait a little longer each time nothing is ready: spin, then yield, then park
+    private static int idle(int idleCount) {
+        if (idleCount < 100) {
+            Thread.onSpinWait();
+        } else if (idleCount < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+        return idleCount + 1;
+    }
+}
+
+// SagaEventCodec class encoding saga events as bytes for the event log
+final class SagaEventCodec {
+    private static final List<Class<? extends SagaEvent>> TYPES = List.of(BookingRequestedEvent.class,
+            RoomBookedEvent.class, RoomBookingCanceledEvent.class, PaymentProcessedEvent.class,
+            PaymentRefundedEvent.class, ConfirmationSentEvent.class, ConfirmationFailedEvent.class);
+
+    private SagaEventCodec() {
+    }
+
+    // Method to encode an event as its type, its saga id and, where it has one, the guest's email
+    public static byte[] encode(SagaEvent event) {
+        String guestEmail = null;
+        if (event instanceof BookingRequestedEvent) {
+            guestEmail = ((BookingRequestedEvent) event).getGuestEmail();
+        } else if (event instanceof RoomBookedEvent) {
+            guestEmail = ((RoomBookedEvent) event).getGuestEmail();
+        } else if (event instanceof PaymentProcessedEvent) {
+            guestEmail = ((PaymentProcessedEvent) event).getGuestEmail();
+        }
+        byte[] email = guestEmail == null ? new byte[0] : guestEmail.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(1 + 8 + (guestEmail == null ? 0 : 4 + email.length));
+        out.put((byte) TYPES.indexOf(event.getClass())).putLong(event.getSagaId());
+        if (guestEmail != null) {
+            out.putInt(email.length).put(email);
+        }
+        return out.array();
+    }
+
+    // Method to decode an event from the buffer's remaining bytes
+    public static SagaEvent decode(ByteBuffer in) {
+        Class<? extends SagaEvent> type = TYPES.get(in.get());
+        long sagaId = in.getLong();
+        if (type == RoomBookingCanceledEvent.class) {
+            return new RoomBookingCanceledEvent(sagaId);
+        } else if (type == PaymentRefundedEvent.class) {
+            return new PaymentRefundedEvent(sagaId);
+        } else if (type == ConfirmationSentEvent.class) {
+            return new ConfirmationSentEvent(sagaId);
+        } else if (type == ConfirmationFailedEvent.class) {
+            return new ConfirmationFailedEvent(sagaId);
+        }
+        byte[] email = new byte[in.getInt()];
+        in.get(email);
+        String guestEmail = new String(email, StandardCharsets.UTF_8);
+        if (type == BookingRequestedEvent.class) {
+            return new BookingRequestedEvent(sagaId, guestEmail);
+        } else if (type == RoomBookedEvent.class) {
+            return new RoomBookedEvent(sagaId, guestEmail);
+        }
+        return new PaymentProcessedEvent(sagaId, guestEmail);
+    }
+}
+
+// RecordHandler interface for walking the records of a batch read from the event log
+@FunctionalInterface
+interface RecordHandler {
+    void onRecord(long offset, ByteBuffer payload);
+}
+
+// LogSegment class holding a contiguous range of one partition's records in a memory-mapped file. A record
+// is framed as length, CRC32 and offset followed by the payload. A sparse index maps every few kilobytes
+// of records from offset to file position, so a read by offset only scans a short stretch of the segment.
+// Only the newest segment of a partition is written to; when it fills up it is sealed by truncating the
+// file to its records and then writing a marker holding its next offset, so reopening a sealed segment
+// needs no scan
+class LogSegment {
+    static final int RECORD_HEADER_BYTES = 16;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY_BYTES = 8; // Offset relative to the segment, then file position
+
+    private final Path directory;
+    private final long baseOffset;
+    private final FileChannel dataChannel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+    private final CRC32 checksum = new CRC32(); // Used by the appending thread only
+    private int lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+    private boolean sealed; // Used by the appending thread only
+    private volatile int indexEntries;
+    private volatile int writePosition;
+    private volatile long nextOffset;
+
+    private LogSegment(Path directory, long baseOffset, FileChannel dataChannel, FileChannel indexChannel,
+            MappedByteBuffer data, MappedByteBuffer index) {
+        this.directory = directory;
+        this.baseOffset = baseOffset;
+        this.dataChannel = dataChannel;
+        this.indexChannel = indexChannel;
+        this.data = data;
+        this.index = index;
+        this.nextOffset = baseOffset;
+    }
+
+    // Method to create or reopen the writable segment starting at the given offset, recovering its end by
+    // scanning for the last intact record
+    static LogSegment openActive(Path directory, long baseOffset, int segmentBytes) throws IOException {
+        FileChannel dataChannel = FileChannel.open(dataPath(directory, baseOffset), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel indexChannel = FileChannel.open(indexPath(directory, baseOffset), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int indexBytes = (segmentBytes / INDEX_INTERVAL_BYTES + 1) * INDEX_ENTRY_BYTES;
+        LogSegment segment = new LogSegment(directory, baseOffset, dataChannel, indexChannel,
+                dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes),
+                indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexBytes));
+        segment.recover();
+        return segment;
+    }
+
+    // Method to reopen a sealed segment; its files hold exactly its records and index entries
+    static LogSegment openSealed(Path directory, long baseOffset, long nextOffset) throws IOException {
+        FileChannel dataChannel = FileChannel.open(dataPath(directory, baseOffset), StandardOpenOption.READ);
+        FileChannel indexChannel = FileChannel.open(indexPath(directory, baseOffset), StandardOpenOption.READ);
+        LogSegment segment = new LogSegment(directory, baseOffset, dataChannel, indexChannel,
+                dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataChannel.size()),
+                indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size()));
+        segment.writePosition = (int) dataChannel.size();
+        segment.indexEntries = (int) (indexChannel.size() / INDEX_ENTRY_BYTES);
+        segment.nextOffset = nextOffset;
+        segment.sealed = true;
+        return segment;
+    }
+
+    // Method to get the next offset recorded by a segment's sealed marker, or -1 if it was never sealed
+    static long sealedNextOffset(Path directory, long baseOffset) throws IOException {
+        Path marker = sealedPath(directory, baseOffset);
+        if (!Files.exists(marker)) {
+            return -1;
+        }
+        byte[] bytes = Files.readAllBytes(marker);
+        // A marker torn by a crash while it was written counts as missing
+        return bytes.length == Long.BYTES ? ByteBuffer.wrap(bytes).getLong() : -1;
+    }
+
+    static Path dataPath(Path directory, long baseOffset) {
+        return directory.resolve(String.format("%020d.log", baseOffset));
+    }
+
+    static Path indexPath(Path directory, long baseOffset) {
+        return directory.resolve(String.format("%020d.index", baseOffset));
+    }
+
+    static Path sealedPath(Path directory, long baseOffset) {
+        return directory.resolve(String.format("%020d.sealed", baseOffset));
+    }
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    // Method to append a record, returning its offset, or -1 if the segment has no room left for it
+    long append(byte[] payload) {
+        int position = writePosition;
+        if (sealed || position + RECORD_HEADER_BYTES + payload.length > data.capacity()) {
+            return -1;
+        }
+        long offset = nextOffset;
+        checksum.reset();
+        checksum.update(payload);
+        data.putInt(position, payload.length);
+        data.putInt(position + 4, (int) checksum.getValue());
+        data.putLong(position + 8, offset);
+        data.put(position + RECORD_HEADER_BYTES, payload);
+        if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+            addIndexEntry(offset, position);
+        }
+        // Publish the record to readers: the volatile writes order the bytes above before them
+        writePosition = position + RECORD_HEADER_BYTES + payload.length;
+        nextOffset = offset + 1;
+        return offset;
+    }
+
+    // Method to get a zero-copy view of whole records starting at the offset, at most maxBytes long unless
+    // the first record alone is larger; the view is empty if the offset is not in this segment
+    ByteBuffer read(long offset, int maxBytes) {
+        long end = nextOffset;
+        int limit = writePosition; // Read after nextOffset, so it covers every record before end
+        if (offset < baseOffset || offset >= end) {
+            return data.slice(0, 0);
+        }
+        int position = lookup(offset);
+        while (data.getLong(position + 8) < offset) {
+            position += RECORD_HEADER_BYTES + data.getInt(position);
+        }
+        int batchEnd = position + RECORD_HEADER_BYTES + data.getInt(position);
+        while (batchEnd < limit) {
+            int next = batchEnd + RECORD_HEADER_BYTES + data.getInt(batchEnd);
+            if (next - position > maxBytes) {
+                break;
+            }
+            batchEnd = next;
+        }
+        return data.slice(position, batchEnd - position).asReadOnlyBuffer();
+    }
+
+    // Method to write the segment's records and index to disk
+    void flush() {
+        data.force();
+        index.force();
+    }
+
+    // Method to shrink the files to what was written and then mark the segment sealed, before the partition
+    // moves on to a new segment; the segment takes no more appends afterwards
+    void seal() throws IOException {
+        sealed = true;
+        flush();
+        dataChannel.truncate(writePosition);
+        indexChannel.truncate((long) indexEntries * INDEX_ENTRY_BYTES);
+        dataChannel.force(true);
+        indexChannel.force(true);
+        try (FileChannel marker = FileChannel.open(sealedPath(directory, baseOffset), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer next = ByteBuffer.allocate(Long.BYTES).putLong(nextOffset).flip();
+            while (next.hasRemaining()) {
+                marker.write(next);
+            }
+            marker.force(true);
+        }
+    }
+
+    void close() throws IOException {
+        dataChannel.close();
+        indexChannel.close();
+    }
+
+    // Method to find the file position of the closest indexed record at or before the offset
+    private int lookup(long offset) {
+        int relative = (int) (offset - baseOffset);
+        int low = 0;
+        int high = indexEntries - 1;
+        int position = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entryOffset = index.getInt(middle * INDEX_ENTRY_BYTES);
+            if (entryOffset <= relative) {
+                position = index.getInt(middle * INDEX_ENTRY_BYTES + 4);
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return position;
+    }
+
+    private void addIndexEntry(long offset, int position) {
+        index.putInt(indexEntries * INDEX_ENTRY_BYTES, (int) (offset - baseOffset));
+        index.putInt(indexEntries * INDEX_ENTRY_BYTES + 4, position);
+        lastIndexedPosition = position;
+        indexEntries++;
+    }
+
+    // Method to walk the records of a reopened segment up to the first empty or torn one, rebuilding the
+    // index on the way; the unused tail of a segment file is zeros, which reads as a zero-length record
+    private void recover() {
+        int position = 0;
+        long offset = baseOffset;
+        while (position + RECORD_HEADER_BYTES <= data.capacity()) {
+            int length = data.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > data.capacity()
+                    || data.getLong(position + 8) != offset) {
+                break;
+            }
+            checksum.reset();
+            checksum.update(data.slice(position + RECORD_HEADER_BYTES, length));
+            if ((int) checksum.getValue() != data.getInt(position + 4)) {
+                break;
+            }
+            if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+                addIndexEntry(offset, position);
+            }
+            position += RECORD_HEADER_BYTES + length;
+            offset++;
+        }
+        // Clear a torn record so it cannot be mistaken for data after the next append
+        for (int i = position; i < Math.min(position + RECORD_HEADER_BYTES, data.capacity()); i++) {
+            data.put(i, (byte) 0);
+        }
+        writePosition = position;
+        nextOffset = offset;
+    }
+}
+
+// LogPartition class holding the ordered segments of one partition of the event log
+class LogPartition {
+    private final Path directory;
+    private final int segmentBytes;
+    private volatile List<LogSegment> segments; // Ordered by base offset; replaced whole when rolling
+    private LogSegment active; // Guarded by this
+
+    LogPartition(Path directory, int segmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        Collections.sort(baseOffsets);
+        if (baseOffsets.isEmpty()) {
+            baseOffsets.add(0L);
+        }
+        // Only the sealed marker is trusted; a segment without one is scanned for its last intact record
+        List<LogSegment> opened = new ArrayList<>(baseOffsets.size() + 1);
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            long baseOffset = baseOffsets.get(i);
+            long nextOffset = LogSegment.sealedNextOffset(directory, baseOffset);
+            if (nextOffset >= 0) {
+                opened.add(LogSegment.openSealed(directory, baseOffset, nextOffset));
+                continue;
+            }
+            LogSegment segment = LogSegment.openActive(directory, baseOffset, segmentBytes);
+            if (i < baseOffsets.size() - 1) {
+                // A crash between filling the segment and sealing it; seal it at the end the scan found
+                segment.seal();
+                segment.close();
+                segment = LogSegment.openSealed(directory, baseOffset, segment.getNextOffset());
+            }
+            opened.add(segment);
+        }
+        for (int i = 0; i < opened.size() - 1; i++) {
+            if (opened.get(i).getNextOffset() != opened.get(i + 1).getBaseOffset()) {
+                throw new IOException("Segment " + opened.get(i).getBaseOffset() + " of " + directory + " ends at "
+                        + opened.get(i).getNextOffset() + " but the next one starts at "
+                        + opened.get(i + 1).getBaseOffset());
+            }
+        }
+        LogSegment last = opened.get(opened.size() - 1);
+        if (LogSegment.sealedNextOffset(directory, last.getBaseOffset()) >= 0) {
+            // A crash after sealing the last segment but before its successor was created
+            last = LogSegment.openActive(directory, last.getNextOffset(), segmentBytes);
+            opened.add(last);
+        }
+        active = last;
+        segments = List.copyOf(opened);
+    }
+
+    // Method to append a record, rolling to a new segment when the active one is full
+    synchronized long append(byte[] payload) throws IOException {
+        long offset = active.append(payload);
+        if (offset < 0) {
+            // Seal first, so a segment that has a successor on disk is always either sealed or scanned on reopen
+            active.seal();
+            LogSegment next = LogSegment.openActive(directory, active.getNextOffset(), segmentBytes);
+            active = next;
+            List<LogSegment> rolled = new ArrayList<>(segments);
+            rolled.add(next);
+            segments = List.copyOf(rolled);
+            offset = active.append(payload);
+            if (offset < 0) {
+                throw new IllegalArgumentException("Record of " + payload.length + " bytes exceeds the segment size");
+            }
+        }
+        return offset;
+    }
+
+    // Method to read whole records starting at the offset from the segment that holds it
+    ByteBuffer read(long offset, int maxBytes) {
+        List<LogSegment> current = segments;
+        int low = 0;
+        int high = current.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (current.get(middle).getBaseOffset() <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return current.get(low).read(offset, maxBytes);
+    }
+
+    long getNextOffset() {
+        List<LogSegment> current = segments;
+        return current.get(current.size() - 1).getNextOffset();
+    }
+
+    synchronized void flush() {
+        active.flush();
+    }
+
+    synchronized void close() throws IOException {
+        active.flush();
+        for (LogSegment segment : segments) {
+            segment.close();
+        }
+    }
+}
+
+// EventLog class, a local append-only log split into partitions by key. Records with the same key, such
+// as the events of one saga, always land in the same partition in order, and each partition can be read
+// by its own consumer. Consumers read by offset and get read-only views of the mapped segment files
+// rather than copies, and commit the offset they have reached per consumer group so that a consumer that
+// crashes picks up where it left off. Appended records are in the page cache once append returns, so
+// they survive a crash of the process; flush forces them to the device
+class EventLog {
+    private static final int DEFAULT_SEGMENT_BYTES = 64 << 20; // 64 MB
+
+    private final Path directory;
+    private final LogPartition[] partitions;
+    private final Map<String, MappedByteBuffer> consumerOffsets = new ConcurrentHashMap<>();
+
+    private EventLog(Path directory, int partitionCount, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.partitions = new LogPartition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new LogPartition(directory.resolve("partition-" + i), segmentBytes);
+        }
+    }
+
+    // Method to open (or create) a log with the given number of partitions in the directory
+    public static EventLog open(Path directory, int partitionCount) throws IOException {
+        return open(directory, partitionCount, DEFAULT_SEGMENT_BYTES);
+    }
+
+    // Method to open a log whose segment files roll over at the given size
+    public static EventLog open(Path directory, int partitionCount, int segmentBytes) throws IOException {
+        return new EventLog(directory, partitionCount, segmentBytes);
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    // Method to pick the partition for a key; the key is mixed so sequential ids spread evenly
+    public int partitionFor(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(mixed ^ (mixed >>> 32), (long) partitions.length);
+    }
+
+    // Method to append a record to the key's partition, returning its offset within that partition
+    public long append(long key, byte[] payload) throws IOException {
+        return partitions[partitionFor(key)].append(payload);
+    }
+
+    // Method to read whole records of a partition starting at the offset, up to about maxBytes; the buffer
+    // is empty when the consumer has caught up
+    public ByteBuffer read(int partition, long offset, int maxBytes) {
+        return partitions[partition].read(offset, maxBytes);
+    }
+
+    // Method to get the offset the next record appended to the partition will have
+    public long getNextOffset(int partition) {
+        return partitions[partition].getNextOffset();
+    }
+
+    // Method to record the next offset a consumer group will read from a partition
+    public void commitOffset(String group, int partition, long offset) throws IOException {
+        offsetsFor(group).putLong(partition * 8, offset);
+    }
+
+    // Method to get the next offset a consumer group will read from a partition (0 if it never committed)
+    public long committedOffset(String group, int partition) throws IOException {
+        return offsetsFor(group).getLong(partition * 8);
+    }
+
+    // Method to force every partition and committed offset to the device
+    public void flush() {
+        for (LogPartition partition : partitions) {
+            partition.flush();
+        }
+        consumerOffsets.values().forEach(MappedByteBuffer::force);
+    }
+
+    public void close() throws IOException {
+        flush();
+        for (LogPartition partition : partitions) {
+            partition.close();
+        }
+    }
+
+    // Method to walk the records of a batch returned by read
+    public static void forEachRecord(ByteBuffer batch, RecordHandler handler) {
+        int position = batch.position();
+        while (position < batch.limit()) {
+            int length = batch.getInt(position);
+            long offset = batch.getLong(position + 8);
+            handler.onRecord(offset, batch.slice(position + LogSegment.RECORD_HEADER_BYTES, length));
+            position += LogSegment.RECORD_HEADER_BYTES + length;
+        }
+    }
+
+    private MappedByteBuffer offsetsFor(String group) throws IOException {
+        MappedByteBuffer offsets = consumerOffsets.get(group);
+        if (offsets == null) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(group + ".offsets"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                offsets = channel.map(FileChannel.MapMode.READ_WRITE, 0, partitions.length * 8L);
+            }
+            MappedByteBuffer existing = consumerOffsets.putIfAbsent(group, offsets);
+            offsets = existing != null ? existing : offsets;
+        }
+        return offsets;
+    }
+}
+
+// BookingService books a room when a booking is requested and cancels it when the payment is refunded
 class BookingService {
+    private final EventBus bus;
+
+    public BookingService(EventBus bus) {
+        this.bus = bus;
+    }
+
+    // Method to react to the events this service takes part in
+    public void onEvent(SagaEvent event, long sequence, boolean endOfBatch) {
+        if (event instanceof BookingRequestedEvent) {
+            bookRoom((BookingRequestedEvent) event);
+        } else if (event instanceof PaymentRefundedEvent) {
+            cancelRoomBooking(event.getSagaId());
+        }
+    }
+
     // Method to book a room
-    public void bookRoom() {
+    public void bookRoom(BookingRequestedEvent request) {
         // Simulate booking a room
         System.out.println("Booking a hotel room...");
         // Simulate room booking
         System.out.println("Room booked successfully");
         // Emit event: Room booked
-        emitEvent("RoomBookedEvent");
+        emitEvent(new RoomBookedEvent(request.getSagaId(), request.getGuestEmail()));
     }
 
     // Method to cancel a room booking
-    public void cancelRoomBooking() {
+    public void cancelRoomBooking(long sagaId) {
         // Simulate canceling the room booking
         System.out.println("Canceling hotel room booking...");
         // Simulate room booking cancellation
         System.out.println("Room booking canceled");
         // Emit event: Room booking canceled
-        emitEvent("RoomBookingCanceledEvent");
+        emitEvent(new RoomBookingCanceledEvent(sagaId));
     }
 
     // Method to emit an event
-    private void emitEvent(String eventName) {
-        System.out.println("Event emitted: " + eventName);
+    private void emitEvent(SagaEvent event) {
+        System.out.println("Event emitted: " + event.getClass().getSimpleName());
+        bus.publish(event);
     }
 }
 
-// PaymentService emits events for processing payment and refunding the payment
+// PaymentService takes payment once a room is booked and refunds it when the confirmation fails
 class PaymentService {
+    private final EventBus bus;
+
+    public PaymentService(EventBus bus) {
+        this.bus = bus;
+    }
+
+    // Method to react to the events this service takes part in
+    public void onEvent(SagaEvent event, long sequence, boolean endOfBatch) {
+        if (event instanceof RoomBookedEvent) {
+            processPayment((RoomBookedEvent) event);
+        } else if (event instanceof ConfirmationFailedEvent) {
+            refundPayment(event.getSagaId());
+        }
+    }
+
     // Method to process payment
-    public void processPayment() {
+    public void processPayment(RoomBookedEvent booking) {
         // Simulate processing payment
         System.out.println("Processing payment...");
         // Simulate payment processing
         System.out.println("Payment processed successfully");
         // Emit event: Payment processed
-        emitEvent("PaymentProcessedEvent");
+        emitEvent(new PaymentProcessedEvent(booking.getSagaId(), booking.getGuestEmail()));
     }
 
     // Method to refund payment
-    public void refundPayment() {
+    public void refundPayment(long sagaId) {
         // Simulate refunding the payment
         System.out.println("Refunding payment...");
         // Simulate payment refunding
         System.out.println("Payment refunded");
         // Emit event: Payment refunded
-        emitEvent("PaymentRefundedEvent");
+        emitEvent(new PaymentRefundedEvent(sagaId));
     }
 
     // Method to emit an event
-    private void emitEvent(String eventName) {
-        System.out.println("Event emitted: " + eventName);
+    private void emitEvent(SagaEvent event) {
+        System.out.println("Event emitted: " + event.getClass().getSimpleName());
+        bus.publish(event);
     }
 }
 
-// NotificationService emits events for sending confirmation emails
+// NotificationService sends the confirmation once payment has been taken
 class NotificationService {
+    private final EventBus bus;
+
+    public NotificationService(EventBus bus) {
+        this.bus = bus;
+    }
+
+    // Method to react to the events this service takes part in
+    public void onEvent(SagaEvent event, long sequence, boolean endOfBatch) {
+        if (event instanceof PaymentProcessedEvent) {
+            sendConfirmation((PaymentProcessedEvent) event);
+        }
+    }
+
     // Method to send confirmation
-    public void sendConfirmation() {
+    public void sendConfirmation(PaymentProcessedEvent payment) {
         // Simulate sending confirmation
         System.out.println("Sending confirmation...");
+        // Simulate a failure for an address the confirmation cannot be delivered to
+        if (!payment.getGuestEmail().contains("@")) {
+            System.out.println("Confirmation sending failed");
+            emitEvent(new ConfirmationFailedEvent(payment.getSagaId()));
+            return;
+        }
         // Simulate confirmation sending
         System.out.println("Confirmation sent successfully");
         // Emit event: Confirmation sent
-        emitEvent("ConfirmationSentEvent");
+        emitEvent(new ConfirmationSentEvent(payment.getSagaId()));
     }
 
     // Method to emit an event
-    private void emitEvent(String eventName) {
-        System.out.println("Event emitted: " + eventName);
+    private void emitEvent(SagaEvent event) {
+        System.out.println("Event emitted: " + event.getClass().getSimpleName());
+        bus.publish(event);
     }
 }
 
-// SagaChoreography class to demonstrate the Saga Choreography pattern
+// SagaChoreography class wiring the services to the event bus. No component coordinates the saga: it
+// starts with a BookingRequestedEvent and each service reacts to the events it cares about
 class SagaChoreography {
-    // Method to execute the saga
-    public void executeSaga() {
-        // Instantiate services
-        BookingService bookingService = new BookingService();
-        PaymentService paymentService = new PaymentService();
-        NotificationService notificationService = new NotificationService();
+    private final EventBus bus = new EventBus(1024, this::failSaga);
+    private final AtomicLong nextSagaId = new AtomicLong(1);
+    private final Map<Long, CompletableFuture<String>> outcomes = new ConcurrentHashMap<>();
+
+    public SagaChoreography() {
+        this(null);
+    }
+
+    // Constructor to also record every event in the event log, keyed by saga so each saga's events stay in
+    // order within one partition
+    public SagaChoreography(EventLog eventLog) {
+        // Instantiate services and subscribe them to the bus
+        BookingService bookingService = new BookingService(bus);
+        PaymentService paymentService = new PaymentService(bus);
+        NotificationService notificationService = new NotificationService(bus);
+        bus.subscribe("booking-service", SagaEvent.class, bookingService::onEvent);
+        bus.subscribe("payment-service", SagaEvent.class, paymentService::onEvent);
+        bus.subscribe("notification-service", SagaEvent.class, notificationService::onEvent);
+
+        // Watch for the events that end a saga, so callers can wait for the outcome. With an event log, the
+        // outcome is reported only once the event that ends the saga is in the log; an event the log failed
+        // to take fails the saga instead
+        if (eventLog == null) {
+            bus.subscribe("saga-outcomes", ConfirmationSentEvent.class,
+                    (event, sequence, endOfBatch) -> complete(event.getSagaId(), "completed"));
+            bus.subscribe("saga-compensations", RoomBookingCanceledEvent.class,
+                    (event, sequence, endOfBatch) -> complete(event.getSagaId(), "compensated"));
+        } else {
+            bus.subscribe("event-log", SagaEvent.class, (event, sequence, endOfBatch) -> {
+                eventLog.append(event.getSagaId(), SagaEventCodec.encode(event));
+                if (event instanceof ConfirmationSentEvent) {
+                    complete(event.getSagaId(), "completed");
+                } else if (event instanceof RoomBookingCanceledEvent) {
+                    complete(event.getSagaId(), "compensated");
+                }
+            });
+        }
+        bus.start();
+    }
+
+    // Method to execute the saga, returning a future that completes with how it ended
+    public CompletableFuture<String> executeSaga(String guestEmail) {
+        long sagaId = nextSagaId.getAndIncrement();
+        CompletableFuture<String> outcome = new CompletableFuture<>();
+        outcomes.put(sagaId, outcome);
+        bus.publish(new BookingRequestedEvent(sagaId, guestEmail));
+        return outcome;
+    }
+
+    private void complete(long sagaId, String outcome) {
+        CompletableFuture<String> future = outcomes.remove(sagaId);
+        if (future != null) {
+            future.complete(outcome);
+        }
+    }
+
+    // Method to fail the saga whose event a service or the event log could not handle, so its caller is not
+    // left waiting, or told it ended with some of its events missing from the log
+    private void failSaga(String subscriber, Object event, long sequence, Throwable failure) {
+        if (!(event instanceof SagaEvent)) {
+            return;
+        }
+        CompletableFuture<String> future = outcomes.remove(((SagaEvent) event).getSagaId());
+        if (future != null) {
+            future.completeExceptionally(new IllegalStateException("Subscriber " + subscriber + " failed on "
+                    + event.getClass().getSimpleName() + " at sequence " + sequence, failure));
+        }
+    }
+
+    // Method to stop the bus once the events already published have been handled
+    public void shutdown() throws InterruptedException {
+        bus.shutdown();
+    }
+}
+
+// EventBusBenchmark class measuring event bus throughput with several producers and subscribers
+class EventBusBenchmark {
+    private static final int EVENTS_PER_PRODUCER = 10_000_000;
+
+    // Minimal event carrying only a sequence number
+    static final class TickEvent {
+        final long value;
+
+        TickEvent(long value) {
+            this.value = value;
+        }
+    }
+
+    public static void run() throws InterruptedException {
+        for (int producers : new int[] { 1, 2, 4 }) {
+            EventBus bus = new EventBus(1 << 16);
+            AtomicLong consumed = new AtomicLong();
+            for (int i = 0; i < 2; i++) {
+                long[] count = new long[1]; // Only touched by this subscriber's thread
+                bus.subscribe("counter-" + i, TickEvent.class, (event, sequence, endOfBatch) -> {
+                    count[0]++;
+                    if (endOfBatch) {
+                        consumed.addAndGet(count[0]);
+                        count[0] = 0;
+                    }
+                });
+            }
+            bus.start();
 
-        // Step 1: Book a room
-        bookingService.bookRoom();
+            Thread[] threads = new Thread[producers];
+            long start = System.nanoTime();
+            for (int p = 0; p < producers; p++) {
+                threads[p] = new Thread(() -> {
+                    for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                        bus.publish(new TickEvent(i));
+                    }
+                });
+                threads[p].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            bus.shutdown();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long published = (long) producers * EVENTS_PER_PRODUCER;
+            System.out.printf("%d producer(s), 2 subscribers: %.1f M events/s published (%d deliveries)%n",
+                    producers, published / seconds / 1e6, consumed.get());
+        }
+    }
+}
 
-        // Step 2: Process payment
-        paymentService.processPayment();
+// EventLogBenchmark class measuring partitioned appends and per-partition parallel reads of the event log
+class EventLogBenchmark {
+    private static final int PARTITIONS = 8;
+    private static final int WRITERS = 4;
+    private static final int EVENTS_PER_WRITER = 2_500_000;
 
-        // Step 3: Send confirmation
-        notificationService.sendConfirmation();
+    public static void run() throws Exception {
+        Path directory = Files.createTempDirectory("event-log-benchmark");
+        try {
+            EventLog log = EventLog.open(directory, PARTITIONS);
+            Thread[] writers = new Thread[WRITERS];
+            long start = System.nanoTime();
+            for (int w = 0; w < WRITERS; w++) {
+                long firstSaga = (long) w * EVENTS_PER_WRITER;
+                writers[w] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < EVENTS_PER_WRITER; i++) {
+                            long sagaId = firstSaga + i;
+                            log.append(sagaId, SagaEventCodec.encode(new RoomBookedEvent(sagaId, "guest@example.com")));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writers[w].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            long events = (long) WRITERS * EVENTS_PER_WRITER;
+            System.out.printf("Appended %d events over %d partitions: %.1f M events/s%n", events, PARTITIONS,
+                    events / ((System.nanoTime() - start) / 1e9) / 1e6);
 
-        // Simulate a failure scenario where payment refund is required
-        // In a real-world scenario, failure detection and compensation triggering would
-        // be more sophisticated
-        boolean paymentRefundRequired = true;
-        if (paymentRefundRequired) {
-            // Step 4: If payment refund is required, trigger compensating actions
-            bookingService.cancelRoomBooking(); // Trigger compensating action for canceled room booking
-            paymentService.refundPayment(); // Trigger compensating action for refunded payment
+            // One consumer thread per partition, each decoding zero-copy batches of up to 1 MB
+            long[] decoded = new long[PARTITIONS];
+            Thread[] readers = new Thread[PARTITIONS];
+            start = System.nanoTime();
+            for (int p = 0; p < PARTITIONS; p++) {
+                int partition = p;
+                readers[p] = new Thread(() -> {
+                    long offset = 0;
+                    long end = log.getNextOffset(partition);
+                    long[] count = new long[1];
+                    while (offset < end) {
+                        ByteBuffer batch = log.read(partition, offset, 1 << 20);
+                        long[] last = new long[1];
+                        EventLog.forEachRecord(batch, (recordOffset, payload) -> {
+                            SagaEventCodec.decode(payload);
+                            count[0]++;
+                            last[0] = recordOffset;
+                        });
+                        offset = last[0] + 1;
+                    }
+                    decoded[partition] = count[0];
+                });
+                readers[p].start();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            System.out.printf("Replayed %d events with %d consumers: %.1f M events/s%n",
+                    Arrays.stream(decoded).sum(), PARTITIONS, events / ((System.nanoTime() - start) / 1e9) / 1e6);
+            log.close();
+        } finally {
+            SagaChoreographyPattern.deleteDirectory(directory);
         }
     }
 }
 
 // Main class to call the SagaChoreography class and execute the saga
 public class SagaChoreographyPattern {
-    public static void main(String[] args) {
-        // Instantiate SagaChoreography and execute the saga
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            EventBusBenchmark.run();
+            EventLogBenchmark.run();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("burst")) {
+            burst();
+            return;
+        }
+
+        // Instantiate SagaChoreography, recording its events in a partitioned event log, and execute a saga
+        // that completes
+        Path directory = Files.createTempDirectory("saga-events");
+        try {
+            EventLog eventLog = EventLog.open(directory, 4);
+            SagaChoreography saga = new SagaChoreography(eventLog);
+            System.out.println("Saga " + saga.executeSaga("guest@example.com").join());
+
+            // A confirmation that cannot be delivered makes the services compensate: the payment service
+            // refunds, and the refund makes the booking service cancel the room
+            System.out.println("Saga " + saga.executeSaga("unreachable guest").join());
+            saga.shutdown();
+
+            // A consumer that was not running can replay the events from the log, starting from the offset
+            // its group last committed in each partition
+            for (int partition = 0; partition < eventLog.getPartitionCount(); partition++) {
+                long offset = eventLog.committedOffset("audit", partition);
+                ByteBuffer batch = eventLog.read(partition, offset, 64 * 1024);
+                int current = partition;
+                long[] next = { offset };
+                EventLog.forEachRecord(batch, (recordOffset, payload) -> {
+                    SagaEvent event = SagaEventCodec.decode(payload);
+                    System.out.println("Replayed partition " + current + " offset " + recordOffset + ": saga "
+                            + event.getSagaId() + " " + event.getClass().getSimpleName());
+                    next[0] = recordOffset + 1;
+                });
+                eventLog.commitOffset("audit", partition, next[0]);
+            }
+            eventLog.close();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // Method to start far more sagas at once than the ring holds, every fifth one compensating, and check
+    // that all of them end: the services publish from their handlers while the ring is full
+    private static void burst() throws Exception {
+        int sagas = 5000;
         SagaChoreography saga = new SagaChoreography();
-        saga.executeSaga();
+        List<CompletableFuture<String>> outcomes = new ArrayList<>();
+        for (int i = 0; i < sagas; i++) {
+            outcomes.add(saga.executeSaga(i % 5 == 0 ? "unreachable guest" : "guest" + i + "@example.com"));
+        }
+        CompletableFuture.allOf(outcomes.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+        saga.shutdown();
+        long compensated = outcomes.stream().filter(outcome -> outcome.join().equals("compensated")).count();
+        System.out.println("Burst of " + sagas + " sagas on a ring of 1024: " + (sagas - compensated)
+                + " completed, " + compensated + " compensated");
     }
-}
\ No newline at end of file
+}
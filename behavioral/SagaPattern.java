@@ -9,7 +9,44 @@
  * @since 03/05/2024
  */
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 // BookingService class responsible for booking a hotel room
 class BookingService {
@@ -23,7 +60,15 @@ class BookingService {
         System.out.println("Room booked successfully");
     }
 
-    public void cancelRoomBooking() {
+    private final Set<String> cancellations = ConcurrentHashMap.newKeySet(); // Idempotency keys already applied
+
+    public void cancelRoomBooking(String idempotencyKey) {
+        // A retried cancellation with the same key must not cancel twice; adding the key is the only check,
+        // so concurrent retries cannot both get past it
+        if (!cancellations.add(idempotencyKey)) {
+            System.out.println("Room booking already canceled for " + idempotencyKey);
+            return;
+        }
         // Simulate canceling the room booking (compensating action)
         System.out.println("Canceling hotel room booking...");
     }
@@ -41,9 +86,23 @@ class PaymentService {
         System.out.println("Payment processed successfully");
     }
 
-    public void refundPayment() {
+    private final Set<String> refunds = ConcurrentHashMap.newKeySet(); // Idempotency keys already applied
+
+    public void refundPayment(String idempotencyKey) throws Exception {
+        // A retried refund with the same key must not refund twice; adding the key is the only check, so
+        // concurrent retries cannot both get past it
+        if (!refunds.add(idempotencyKey)) {
+            System.out.println("Payment already refunded for " + idempotencyKey);
+            return;
+        }
         // Simulate refunding the payment (compensating action)
         System.out.println("Refunding payment...");
+        // Simulate a transient failure that a retry can get past; the key is released so the retry refunds
+        if (ThreadLocalRandom.current().nextInt(3) == 0) {
+            refunds.remove(idempotencyKey);
+            throw new Exception("Refund temporarily unavailable");
+        }
+        System.out.println("Payment refunded");
     }
 }
 
@@ -60,54 +119,1110 @@ class NotificationService {
     }
 }
 
-// SagaOrchestrator class coordinating the saga
-class SagaOrchestrator {
-    public void bookHotelRoomSaga() {
+// SagaAction interface for the work done by a saga step
+@FunctionalInterface
+interface SagaAction {
+    void run() throws Exception;
+}
+
+// SagaCompensation interface for undoing a saga step. A compensation may be retried, or run again after a
+// restart, so it receives a key that stays the same across attempts and must apply its effect only once
+@FunctionalInterface
+interface SagaCompensation {
+    void run(String idempotencyKey) throws Exception;
+}
+
+// CompensationRetryPolicy class configuring how failed compensations are retried with exponential backoff
+class CompensationRetryPolicy {
+    private int maxAttempts;
+    private long initialBackoffMillis;
+    private long maxBackoffMillis;
+    private double backoffMultiplier;
+
+    // Private constructor to force construction through the builder
+    private CompensationRetryPolicy() {
+    }
+
+    // Method to get a policy with every setting left at its default
+    public static CompensationRetryPolicy ofDefaults() {
+        return new Builder().build();
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public double getBackoffMultiplier() {
+        return backoffMultiplier;
+    }
+
+    // Method to get the delay before the given retry (1 for the first retry). Half the delay is random, so
+    // compensations that failed together don't all retry at the same moment
+    public long backoffNanos(int retry) {
+        double millis = Math.min(initialBackoffMillis * Math.pow(backoffMultiplier, retry - 1), maxBackoffMillis);
+        long nanos = (long) (millis * 1_000_000);
+        return nanos / 2 + ThreadLocalRandom.current().nextLong(nanos / 2 + 1);
+    }
+
+    // Builder class for building CompensationRetryPolicy objects
+    public static class Builder {
+        private int maxAttempts = 5;
+        private long initialBackoffMillis = 100;
+        private long maxBackoffMillis = 10000; // 10 seconds
+        private double backoffMultiplier = 2.0;
+
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder initialBackoffMillis(long initialBackoffMillis) {
+            this.initialBackoffMillis = initialBackoffMillis;
+            return this;
+        }
+
+        public Builder maxBackoffMillis(long maxBackoffMillis) {
+            this.maxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        public Builder backoffMultiplier(double backoffMultiplier) {
+            this.backoffMultiplier = backoffMultiplier;
+            return this;
+        }
+
+        // Build method to validate the settings and construct the final object
+        public CompensationRetryPolicy build() {
+            if (maxAttempts <= 0) {
+                throw new IllegalArgumentException("Max attempts must be positive");
+            }
+            if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis || backoffMultiplier < 1) {
+                throw new IllegalArgumentException("Backoff must be non-negative, bounded and non-decreasing");
+            }
+            CompensationRetryPolicy policy = new CompensationRetryPolicy();
+            policy.maxAttempts = maxAttempts;
+            policy.initialBackoffMillis = initialBackoffMillis;
+            policy.maxBackoffMillis = maxBackoffMillis;
+            policy.backoffMultiplier = backoffMultiplier;
+            return policy;
+        }
+    }
+}
+
+// SagaStep class describing one step of a saga, its compensating action and the steps it depends on
+class SagaStep {
+    private final String name;
+    private final SagaAction action;
+    private final SagaCompensation compensation; // Null when the step has nothing to undo
+    private final List<String> dependencies;
+
+    public SagaStep(String name, SagaAction action, SagaCompensation compensation, List<String> dependencies) {
+        this.name = name;
+        this.action = action;
+        this.compensation = compensation;
+        this.dependencies = List.copyOf(dependencies);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public SagaAction getAction() {
+        return action;
+    }
+
+    public SagaCompensation getCompensation() {
+        return compensation;
+    }
+
+    public List<String> getDependencies() {
+        return dependencies;
+    }
+}
+
+// SagaDefinition class holding the steps of a saga as a dependency graph. Steps are kept in topological
+// order, so every step comes after the steps it depends on
+class SagaDefinition {
+    private final String name;
+    private final List<SagaStep> steps;
+    private final Map<String, SagaStep> stepsByName = new HashMap<>();
+    private final Map<String, List<String>> dependents = new HashMap<>();
+    private final CompensationRetryPolicy compensationRetryPolicy;
+
+    private SagaDefinition(String name, List<SagaStep> steps, CompensationRetryPolicy compensationRetryPolicy) {
+        this.name = name;
+        this.steps = steps;
+        this.compensationRetryPolicy = compensationRetryPolicy;
+        for (SagaStep step : steps) {
+            stepsByName.put(step.getName(), step);
+            for (String dependency : step.getDependencies()) {
+                dependents.computeIfAbsent(dependency, key -> new ArrayList<>()).add(step.getName());
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<SagaStep> getSteps() {
+        return steps;
+    }
+
+    public SagaStep getStep(String stepName) {
+        return stepsByName.get(stepName);
+    }
+
+    // Method to get the steps that depend directly on the named step
+    public List<String> getDependents(String stepName) {
+        return dependents.getOrDefault(stepName, List.of());
+    }
+
+    public CompensationRetryPolicy getCompensationRetryPolicy() {
+        return compensationRetryPolicy;
+    }
+
+    // Builder class for declaring steps and their dependencies
+    public static class Builder {
+        private final String name;
+        private final Map<String, SagaStep> steps = new LinkedHashMap<>();
+        private CompensationRetryPolicy compensationRetryPolicy = CompensationRetryPolicy.ofDefaults();
+
+        public Builder(String name) {
+            this.name = name;
+        }
+
+        // Method to add a step that runs once all the named steps have completed
+        public Builder step(String stepName, SagaAction action, SagaCompensation compensation,
+                String... dependsOn) {
+            if (steps.containsKey(stepName)) {
+                throw new IllegalArgumentException("Duplicate saga step: " + stepName);
+            }
+            steps.put(stepName, new SagaStep(stepName, action, compensation, Arrays.asList(dependsOn)));
+            return this;
+        }
+
+        public Builder compensationRetryPolicy(CompensationRetryPolicy compensationRetryPolicy) {
+            this.compensationRetryPolicy = compensationRetryPolicy;
+            return this;
+        }
+
+        // Build method to validate the graph and sort the steps topologically
+        public SagaDefinition build() {
+            Map<String, Integer> pendingDependencies = new HashMap<>();
+            Map<String, List<SagaStep>> dependents = new HashMap<>();
+            Deque<SagaStep> ready = new ArrayDeque<>();
+            for (SagaStep step : steps.values()) {
+                for (String dependency : step.getDependencies()) {
+                    if (!steps.containsKey(dependency)) {
+                        throw new IllegalArgumentException(
+                                "Saga step " + step.getName() + " depends on unknown step " + dependency);
+                    }
+                    dependents.computeIfAbsent(dependency, key -> new ArrayList<>()).add(step);
+                }
+                pendingDependencies.put(step.getName(), step.getDependencies().size());
+                if (step.getDependencies().isEmpty()) {
+                    ready.add(step);
+                }
+            }
+
+            List<SagaStep> sorted = new ArrayList<>(steps.size());
+            while (!ready.isEmpty()) {
+                SagaStep step = ready.poll();
+                sorted.add(step);
+                for (SagaStep dependent : dependents.getOrDefault(step.getName(), List.of())) {
+                    if (pendingDependencies.merge(dependent.getName(), -1, Integer::sum) == 0) {
+                        ready.add(dependent);
+                    }
+                }
+            }
+            if (sorted.size() != steps.size()) {
+                throw new IllegalArgumentException("Saga " + name + " has a dependency cycle");
+            }
+            return new SagaDefinition(name, List.copyOf(sorted), compensationRetryPolicy);
+        }
+    }
+}
+
+// SagaStatus enum representing how a saga ended
+enum SagaStatus {
+    COMPLETED, // Every step succeeded
+    COMPENSATED // A step failed and the completed steps were compensated
+}
+
+// SagaResult class describing the outcome of one saga execution
+class SagaResult {
+    private final long sagaId;
+    private final String sagaName;
+    private final SagaStatus status;
+    private final List<String> completedSteps;
+    private final Throwable failure;
+    private final List<String> failedCompensations;
+
+    public SagaResult(long sagaId, String sagaName, SagaStatus status, List<String> completedSteps,
+            Throwable failure, List<String> failedCompensations) {
+        this.sagaId = sagaId;
+        this.sagaName = sagaName;
+        this.status = status;
+        this.completedSteps = List.copyOf(completedSteps);
+        this.failure = failure;
+        this.failedCompensations = List.copyOf(failedCompensations);
+    }
+
+    public long getSagaId() {
+        return sagaId;
+    }
+
+    public String getSagaName() {
+        return sagaName;
+    }
+
+    public SagaStatus getStatus() {
+        return status;
+    }
+
+    // Steps that completed, in the order they completed
+    public List<String> getCompletedSteps() {
+        return completedSteps;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public List<String> getFailedCompensations() {
+        return failedCompensations;
+    }
+}
+
+// SagaEventType enum listing the transitions written to the saga log
+enum SagaEventType {
+    SAGA_STARTED,
+    STEP_STARTED,
+    STEP_COMPLETED,
+    STEP_FAILED,
+    STEP_COMPENSATED,
+    SAGA_ENDED,
+    SEGMENT_STARTED // First record of every segment; its saga id is the highest used before the segment
+}
+
+// RecoveredSaga class holding what the saga log says about a saga that had not ended when the process stopped
+class RecoveredSaga {
+    private final long sagaId;
+    private final String sagaName;
+    private final String executionId;
+    private final List<String> startedSteps = new ArrayList<>(); // In the order they started
+    private final Set<String> completedSteps = new HashSet<>();
+    private final Set<String> failedSteps = new HashSet<>();
+    private final Set<String> compensatedSteps = new HashSet<>();
+
+    public RecoveredSaga(long sagaId, String sagaName, String executionId) {
+        this.sagaId = sagaId;
+        this.sagaName = sagaName;
+        this.executionId = executionId;
+    }
+
+    public long getSagaId() {
+        return sagaId;
+    }
+
+    public String getSagaName() {
+        return sagaName;
+    }
+
+    public String getExecutionId() {
+        return executionId;
+    }
+
+    // Method to check whether the saga can carry on where it stopped: nothing failed, nothing was being
+    // compensated and every step that started is known to have completed
+    public boolean isResumable() {
+        return failedSteps.isEmpty() && compensatedSteps.isEmpty() && completedSteps.size() == startedSteps.size();
+    }
+
+    // Steps known to have completed, in the order they started
+    public List<String> getCompletedSteps() {
+        List<String> steps = new ArrayList<>();
+        for (String step : startedSteps) {
+            if (completedSteps.contains(step)) {
+                steps.add(step);
+            }
+        }
+        return steps;
+    }
+
+    // Steps that completed, or were cut off midway and may have taken effect, and have not been compensated
+    // yet, in the order they started
+    public List<String> getStepsToCompensate() {
+        List<String> steps = new ArrayList<>();
+        for (String step : startedSteps) {
+            if (!failedSteps.contains(step) && !compensatedSteps.contains(step)) {
+                steps.add(step);
+            }
+        }
+        return steps;
+    }
+
+    void apply(SagaEventType type, String stepName) {
+        switch (type) {
+            case STEP_STARTED:
+                startedSteps.add(stepName);
+                break;
+            case STEP_COMPLETED:
+                completedSteps.add(stepName);
+                break;
+            case STEP_FAILED:
+                failedSteps.add(stepName);
+                break;
+            case STEP_COMPENSATED:
+                compensatedSteps.add(stepName);
+                break;
+            default:
+                break;
+        }
+    }
+}
+
+// SagaLog class writing saga transitions ahead to local segment files. Appends are group-committed: one
+// writer thread drains every queued record, writes them with a single FileChannel write and forces the
+// segment once for the whole batch. Segments roll over at a fixed size and are deleted once every saga
+// that started in them, or in an older segment, has ended. Every segment starts with the highest saga id
+// used before it, and the newest segment is never deleted, so saga ids are not reused after old segments
+// go. Opening the log replays the segments to find the sagas that were still in flight, stopping at the
+// first torn record. A failed write or force cuts the segment back to the last forced batch and fails every
+// later append, so no record is reported durable behind a torn one
+class SagaLog implements AutoCloseable {
+    private static final int MAX_BATCH = 4096;
+    private static final long SEGMENT_BYTES = 16L << 20; // 16 MB per segment
+    private static final SagaEventType[] EVENT_TYPES = SagaEventType.values();
+
+    private final Path directory;
+    private final BlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+    private final Map<Long, RecoveredSaga> inFlight = new LinkedHashMap<>();
+    private final Thread writer;
+    private final AtomicLong nextSagaId;
+    // Writer thread state: the open segment and, per segment, how many sagas that started there are open
+    private final Map<Long, Long> sagaSegments = new HashMap<>();
+    private final TreeMap<Long, Integer> openSagasBySegment = new TreeMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private long highestSagaId; // Highest saga id written so far
+    private FileChannel segment;
+    private long segmentIndex;
+    private long segmentBytes;
+    private long syncedBytes; // Bytes of the open segment known to be on disk
+    private IOException failure; // Set by the writer thread once a write fails; later appends fail with it
+    private volatile long syncCount;
+    private final Object closeLock = new Object(); // Orders appends against close
+    private boolean closed; // Guarded by closeLock
+
+    // One queued record together with the future completed once it is on disk
+    private static final class Command {
+        final byte[] record;
+        final SagaEventType type;
+        final long sagaId;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        Long startSegment; // Segment the ended saga had started in, so a failed batch can restore its count
+
+        Command(byte[] record, SagaEventType type, long sagaId) {
+            this.record = record;
+            this.type = type;
+            this.sagaId = sagaId;
+        }
+    }
+
+    private SagaLog(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.highestSagaId = recover();
+        this.nextSagaId = new AtomicLong(highestSagaId + 1);
+        // Appends always go to a fresh segment, so a torn tail never sits in front of new records
+        segmentIndex = openSagasBySegment.isEmpty() ? 0 : openSagasBySegment.lastKey() + 1;
+        openSegment();
+        deleteEndedSegments();
+        this.writer = new Thread(this::writeLoop, "saga-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Method to open (or create) a saga log in the directory, recovering the sagas still in flight
+    public static SagaLog open(Path directory) throws IOException {
+        return new SagaLog(directory);
+    }
+
+    // Method to get the sagas that had started but not ended when the log was last written
+    public Collection<RecoveredSaga> getInFlightSagas() {
+        return inFlight.values();
+    }
+
+    // Method to take a saga id that no saga in this log, past or present, has used, so that every
+    // orchestrator sharing the log gets distinct ids
+    public long newSagaId() {
+        return nextSagaId.getAndIncrement();
+    }
+
+    // Method to get how many times the log has been forced to disk
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    // Method to log a transition; the future completes once it is on disk
+    public CompletableFuture<Void> append(SagaEventType type, long sagaId, String detail) {
+        Command command = new Command(encode(type, sagaId, detail), type, sagaId);
+        synchronized (closeLock) {
+            if (closed) {
+                command.done.completeExceptionally(new IOException("Saga log is closed"));
+            } else {
+                queue.add(command);
+            }
+        }
+        return command.done;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (closeLock) {
+            closed = true; // Nothing is queued after this, so the writer drains everything before it exits
+        }
         try {
-            // Step 1: Book a room
-            BookingService bookingService = new BookingService();
-            bookingService.bookRoom();
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+    }
 
-            // Step 2: Process payment
-            PaymentService paymentService = new PaymentService();
-            paymentService.processPayment();
+    private boolean isClosed() {
+        synchronized (closeLock) {
+            return closed;
+        }
+    }
+
+    // Method run by the writer thread: drain, write and force batches until closed and empty
+    private void writeLoop() {
+        List<Command> batch = new ArrayList<>(MAX_BATCH);
+        while (!isClosed() || !queue.isEmpty()) {
+            long highestBefore = highestSagaId;
+            boolean committed = false;
+            try {
+                Command first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                if (failure != null) {
+                    for (Command command : batch) {
+                        command.done.completeExceptionally(failure);
+                    }
+                    continue;
+                }
+                for (Command command : batch) {
+                    if (buffer.remaining() < command.record.length) {
+                        writeBuffer();
+                    }
+                    if (command.record.length > buffer.capacity()) {
+                        writeFully(ByteBuffer.wrap(command.record));
+                    } else {
+                        buffer.put(command.record);
+                    }
+                    track(command);
+                }
+                writeBuffer();
+                segment.force(false);
+                syncedBytes = segmentBytes;
+                syncCount++;
+                committed = true;
+                for (Command command : batch) {
+                    command.done.complete(null);
+                }
+                if (segmentBytes >= SEGMENT_BYTES) {
+                    rollSegment();
+                }
+                deleteEndedSegments();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                if (!committed) {
+                    untrack(batch);
+                    highestSagaId = highestBefore;
+                }
+                for (Command command : batch) {
+                    command.done.completeExceptionally(failure); // No effect on records already durable
+                }
+                buffer.clear();
+                discardUnsynced();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
 
-            // Step 3: Send confirmation
-            NotificationService notificationService = new NotificationService();
-            notificationService.sendConfirmation();
+    // Method to keep count of the open sagas per segment as their start and end records are written
+    private void track(Command command) {
+        highestSagaId = Math.max(highestSagaId, command.sagaId);
+        if (command.type == SagaEventType.SAGA_STARTED) {
+            sagaSegments.put(command.sagaId, segmentIndex);
+            openSagasBySegment.merge(segmentIndex, 1, Integer::sum);
+        } else if (command.type == SagaEventType.SAGA_ENDED) {
+            Long startSegment = sagaSegments.remove(command.sagaId);
+            if (startSegment != null) {
+                openSagasBySegment.merge(startSegment, -1, Integer::sum);
+            }
+            command.startSegment = startSegment;
+        }
+    }
 
-            System.out.println("Hotel booking saga completed successfully");
-        } catch (Exception e) {
-            // If any step fails, catch the exception
-            System.out.println("Hotel booking saga failed: " + e.getMessage());
-            // Perform compensation to maintain data consistency
-            compensate();
+    // Method to take back what track counted for a batch that never reached the disk, newest first
+    private void untrack(List<Command> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            Command command = batch.get(i);
+            if (command.type == SagaEventType.SAGA_STARTED) {
+                Long startSegment = sagaSegments.remove(command.sagaId);
+                if (startSegment != null) {
+                    openSagasBySegment.merge(startSegment, -1, Integer::sum);
+                }
+            } else if (command.type == SagaEventType.SAGA_ENDED && command.startSegment != null) {
+                sagaSegments.put(command.sagaId, command.startSegment);
+                openSagasBySegment.merge(command.startSegment, 1, Integer::sum);
+                command.startSegment = null;
+            }
         }
     }
 
-    private void compensate() {
-        // Execute compensating actions
+    // Method to cut the segment back to what was last forced, so later records never follow a torn batch
+    private void discardUnsynced() {
         try {
-            BookingService bookingService = new BookingService();
-            bookingService.cancelRoomBooking();
-        } catch (Exception e) {
-            System.out.println("Failed to compensate for room booking: " + e.getMessage());
+            segment.truncate(syncedBytes);
+            segment.position(syncedBytes);
+            segmentBytes = syncedBytes;
+        } catch (IOException | RuntimeException e) {
+            // The log refuses appends from now on; recovery stops at the first torn record anyway
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            segmentBytes += segment.write(bytes);
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        segment.close();
+        segmentIndex++;
+        openSegment();
+    }
+
+    // Method to create the segment at segmentIndex and force its first record, the highest saga id so far,
+    // before any older segment can be deleted
+    private void openSegment() throws IOException {
+        segment = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        segmentBytes = 0;
+        writeFully(ByteBuffer.wrap(encode(SagaEventType.SEGMENT_STARTED, highestSagaId, "")));
+        segment.force(false);
+        syncedBytes = segmentBytes;
+        openSagasBySegment.put(segmentIndex, 0);
+    }
+
+    // Method to delete the oldest segments once none of the sagas that started in them is still open
+    private void deleteEndedSegments() throws IOException {
+        while (true) {
+            Map.Entry<Long, Integer> oldest = openSagasBySegment.firstEntry();
+            if (oldest.getKey() == segmentIndex || oldest.getValue() > 0) {
+                return;
+            }
+            Files.deleteIfExists(segmentPath(oldest.getKey()));
+            openSagasBySegment.pollFirstEntry();
+        }
+    }
+
+    private Path segmentPath(long index) {
+        return directory.resolve(String.format("saga-%020d.log", index));
+    }
+
+    // Method to replay every segment in order, returning the highest saga id seen
+    private long recover() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "saga-*.log")) {
+            files.forEach(segments::add);
+        }
+        Collections.sort(segments); // Zero-padded indexes sort by name
+        long maxSagaId = 0;
+        for (Path path : segments) {
+            String fileName = path.getFileName().toString();
+            long index = Long.parseLong(fileName.substring(5, fileName.length() - 4));
+            openSagasBySegment.putIfAbsent(index, 0);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                long validBytes = 0;
+                while (true) {
+                    long sagaId = replay(mapped, index);
+                    if (sagaId < 0) {
+                        break; // End of segment, or a record torn by a crash
+                    }
+                    maxSagaId = Math.max(maxSagaId, sagaId);
+                    validBytes = mapped.position();
+                }
+                if (validBytes < channel.size()) {
+                    channel.truncate(validBytes);
+                }
+            }
+        }
+        return maxSagaId;
+    }
+
+    // Method to apply the next framed record if it is intact, returning its saga id or -1 if there is none
+    private long replay(ByteBuffer in, long segment) {
+        if (in.remaining() < 8) {
+            return -1;
+        }
+        int start = in.position();
+        int length = in.getInt(start);
+        if (length <= 0 || length > in.remaining() - 8) {
+            return -1;
         }
+        ByteBuffer payload = in.duplicate();
+        payload.position(start + 8).limit(start + 8 + length);
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        if ((int) checksum.getValue() != in.getInt(start + 4)) {
+            return -1;
+        }
+
+        in.position(start + 8);
+        SagaEventType type = EVENT_TYPES[in.get()];
+        long sagaId = in.getLong();
+        byte[] detail = new byte[in.getInt()];
+        in.get(detail);
+        String text = new String(detail, StandardCharsets.UTF_8);
+        if (type == SagaEventType.SAGA_STARTED) {
+            int separator = text.lastIndexOf(' '); // "<saga name> <execution id>"
+            inFlight.put(sagaId, new RecoveredSaga(sagaId, text.substring(0, separator),
+                    text.substring(separator + 1)));
+            sagaSegments.put(sagaId, segment);
+            openSagasBySegment.merge(segment, 1, Integer::sum);
+        } else if (type == SagaEventType.SAGA_ENDED) {
+            if (inFlight.remove(sagaId) != null) {
+                openSagasBySegment.merge(sagaSegments.remove(sagaId), -1, Integer::sum);
+            }
+        } else if (type != SagaEventType.SEGMENT_STARTED) {
+            RecoveredSaga saga = inFlight.get(sagaId);
+            if (saga != null) { // Otherwise the saga ended and its start segment has been deleted
+                saga.apply(type, text);
+            }
+        }
+        return sagaId;
+    }
+
+    // Method to encode one framed record: length, CRC32 of the payload, then the payload itself
+    private static byte[] encode(SagaEventType type, long sagaId, String detail) {
+        byte[] text = detail.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 1 + 8 + 4 + text.length;
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadLength);
+        record.putInt(payloadLength).putInt(0);
+        record.put((byte) type.ordinal()).putLong(sagaId).putInt(text.length).put(text);
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 8, payloadLength);
+        record.putInt(4, (int) checksum.getValue());
+        return record.array();
+    }
+}
+
+// SagaExecution class running one saga: each step starts on the executor as soon as its dependencies have
+// completed, so independent steps run concurrently and the saga takes as long as its critical path. With a
+// saga log, a step's start is on disk before the step runs, so recovery knows which steps may need undoing
+class SagaExecution {
+    private final SagaDefinition saga;
+    private final Executor executor;
+    private final SagaLog log; // Null when the orchestrator is not durable
+    private final long sagaId;
+    private final String executionId; // Unique across orchestrators and logs, unlike the saga id
+    private final Deque<SagaStep> completed = new ConcurrentLinkedDeque<>(); // Most recent first
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public SagaExecution(SagaDefinition saga, Executor executor, SagaLog log, long sagaId, String executionId) {
+        this.saga = saga;
+        this.executor = executor;
+        this.log = log;
+        this.sagaId = sagaId;
+        this.executionId = executionId;
+    }
+
+    // Method to start every step and return a future that completes once the saga has finished
+    public CompletableFuture<SagaResult> start() {
+        record(SagaEventType.SAGA_STARTED, saga.getName() + " " + executionId);
+        return runSteps(Set.of());
+    }
+
+    // Method to carry on with a recovered saga from the steps it had already completed
+    public CompletableFuture<SagaResult> resume(List<String> completedSteps) {
+        for (String stepName : completedSteps) {
+            completed.push(saga.getStep(stepName));
+        }
+        return runSteps(new HashSet<>(completedSteps));
+    }
 
+    // Method to undo a recovered saga's steps, given in the order they started
+    public CompletableFuture<SagaResult> compensate(List<String> stepsToCompensate, Throwable cause) {
+        for (String stepName : stepsToCompensate) {
+            completed.push(saga.getStep(stepName));
+        }
+        failure.set(cause);
+        return finish();
+    }
+
+    private CompletableFuture<SagaResult> runSteps(Set<String> alreadyCompleted) {
+        Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+        for (SagaStep step : saga.getSteps()) {
+            if (alreadyCompleted.contains(step.getName())) {
+                futures.put(step.getName(), CompletableFuture.completedFuture(null));
+                continue;
+            }
+            CompletableFuture<?>[] dependencies = new CompletableFuture<?>[step.getDependencies().size()];
+            for (int i = 0; i < dependencies.length; i++) {
+                dependencies[i] = futures.get(step.getDependencies().get(i));
+            }
+            futures.put(step.getName(),
+                    CompletableFuture.allOf(dependencies).thenCompose(ignored -> runStep(step)));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+                .thenCompose(ignored -> finish());
+    }
+
+    private CompletableFuture<Void> runStep(SagaStep step) {
+        if (failure.get() != null) {
+            return CompletableFuture.completedFuture(null); // Another step failed; don't start new work
+        }
+        return record(SagaEventType.STEP_STARTED, step.getName()).thenComposeAsync(ignored -> {
+            try {
+                step.getAction().run();
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+                return record(SagaEventType.STEP_FAILED, step.getName());
+            }
+            completed.push(step);
+            return record(SagaEventType.STEP_COMPLETED, step.getName());
+        }, executor);
+    }
+
+    // Method to build the result once every step has either run or been skipped, compensating on failure
+    private CompletableFuture<SagaResult> finish() {
+        List<String> completedSteps = new ArrayList<>(completed.size());
+        completed.descendingIterator().forEachRemaining(step -> completedSteps.add(step.getName()));
+        Throwable cause = failure.get();
+        if (cause == null) {
+            SagaResult result = new SagaResult(sagaId, saga.getName(), SagaStatus.COMPLETED, completedSteps, null,
+                    List.of());
+            return record(SagaEventType.SAGA_ENDED, SagaStatus.COMPLETED.name()).thenApply(ignored -> result);
+        }
+
+        // Undo the completed steps in reverse dependency order: a step is compensated once every completed
+        // step that depends on it has been, and independent compensations run concurrently
+        Set<String> toCompensate = new HashSet<>(completedSteps);
+        Map<String, CompletableFuture<Boolean>> compensations = new LinkedHashMap<>();
+        List<SagaStep> steps = saga.getSteps();
+        for (int i = steps.size() - 1; i >= 0; i--) {
+            SagaStep step = steps.get(i);
+            if (!toCompensate.contains(step.getName())) {
+                continue;
+            }
+            List<CompletableFuture<Boolean>> dependents = new ArrayList<>();
+            for (String dependent : saga.getDependents(step.getName())) {
+                CompletableFuture<Boolean> compensation = compensations.get(dependent);
+                if (compensation != null) {
+                    dependents.add(compensation);
+                }
+            }
+            compensations.put(step.getName(), CompletableFuture.allOf(dependents.toArray(new CompletableFuture<?>[0]))
+                    .thenComposeAsync(ignored -> compensate(step), executor));
+        }
+
+        return CompletableFuture.allOf(compensations.values().toArray(new CompletableFuture<?>[0]))
+                .thenCompose(ignored -> {
+                    List<String> failedCompensations = new ArrayList<>();
+                    compensations.forEach((stepName, compensated) -> {
+                        if (!compensated.join()) {
+                            failedCompensations.add(stepName);
+                        }
+                    });
+                    SagaResult result = new SagaResult(sagaId, saga.getName(), SagaStatus.COMPENSATED,
+                            completedSteps, cause, failedCompensations);
+                    // A saga whose compensations failed still ends in the log, so it does not keep its segment
+                    // (and every later one) forever; the record names the steps left for an operator to undo
+                    String status = failedCompensations.isEmpty() ? SagaStatus.COMPENSATED.name()
+                            : "COMPENSATION_FAILED " + String.join(",", failedCompensations);
+                    return record(SagaEventType.SAGA_ENDED, status).thenApply(done -> result);
+                });
+    }
+
+    // Method to run a step's compensation, completing with whether it eventually succeeded
+    private CompletableFuture<Boolean> compensate(SagaStep step) {
+        CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        if (step.getCompensation() == null) {
+            outcome.complete(true);
+        } else {
+            // The key is stable across retries and restarts because the execution id is in the log. Saga ids
+            // alone are not enough: they restart at 1 in every orchestrator without a log, and in every log
+            // directory, and those may share the services being compensated
+            attemptCompensation(step, executionId + "/" + step.getName(), 1, outcome);
+        }
+        return outcome;
+    }
+
+    // Method to make one compensation attempt. A failed attempt is retried from a delayed executor rather
+    // than a sleeping thread, so a storm of failing compensations doesn't hold threads while backing off
+    private void attemptCompensation(SagaStep step, String idempotencyKey, int attempt,
+            CompletableFuture<Boolean> outcome) {
         try {
-            PaymentService paymentService = new PaymentService();
-            paymentService.refundPayment();
+            step.getCompensation().run(idempotencyKey);
         } catch (Exception e) {
-            System.out.println("Failed to compensate for payment: " + e.getMessage());
+            CompensationRetryPolicy policy = saga.getCompensationRetryPolicy();
+            if (attempt >= policy.getMaxAttempts()) {
+                outcome.complete(false);
+                return;
+            }
+            Executor delayed = CompletableFuture.delayedExecutor(policy.backoffNanos(attempt),
+                    TimeUnit.NANOSECONDS, executor);
+            delayed.execute(() -> attemptCompensation(step, idempotencyKey, attempt + 1, outcome));
+            return;
         }
+        record(SagaEventType.STEP_COMPENSATED, step.getName());
+        outcome.complete(true);
+    }
+
+    private CompletableFuture<Void> record(SagaEventType type, String detail) {
+        return log == null ? CompletableFuture.completedFuture(null) : log.append(type, sagaId, detail);
+    }
+}
+
+// SagaOrchestrator class coordinating sagas on an executor, so many sagas can run at the same time
+class SagaOrchestrator {
+    private final Executor executor;
+    private final SagaLog log; // Null when sagas are not durable
+    private final AtomicLong nextSagaId = new AtomicLong(1); // Used when there is no log
+    private final Map<String, SagaDefinition> definitions = new ConcurrentHashMap<>();
+    private final SagaDefinition hotelBookingSaga;
+
+    // Constructor to run sagas on virtual threads where available
+    public SagaOrchestrator() {
+        this(newVirtualThreadPerTaskExecutor());
+    }
+
+    public SagaOrchestrator(Executor executor) {
+        this(executor, null);
+    }
+
+    public SagaOrchestrator(Executor executor, SagaLog log) {
+        this(executor, log, new BookingService(), new PaymentService(), new NotificationService());
+    }
+
+    public SagaOrchestrator(Executor executor, SagaLog log, BookingService bookingService,
+            PaymentService paymentService, NotificationService notificationService) {
+        this.executor = executor;
+        this.log = log;
+        // Booking the room and taking payment are independent; the confirmation needs both
+        this.hotelBookingSaga = new SagaDefinition.Builder("HotelBooking")
+                .step("bookRoom", bookingService::bookRoom, bookingService::cancelRoomBooking)
+                .step("processPayment", paymentService::processPayment, paymentService::refundPayment)
+                .step("sendConfirmation", notificationService::sendConfirmation, null, "bookRoom",
+                        "processPayment")
+                .build();
+        register(hotelBookingSaga);
+    }
+
+    // Method to create a virtual-thread-per-task executor, looked up reflectively so this file still
+    // compiles and runs on JDKs without virtual threads
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "saga-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Method to make a saga known to recovery; executed sagas are registered automatically
+    public void register(SagaDefinition saga) {
+        definitions.put(saga.getName(), saga);
+    }
+
+    // Method to run the hotel booking saga
+    public CompletableFuture<SagaResult> bookHotelRoomSaga() {
+        return execute(hotelBookingSaga).thenApply(result -> {
+            if (result.getStatus() == SagaStatus.COMPLETED) {
+                System.out.println("Hotel booking saga completed successfully");
+            } else {
+                System.out.println("Hotel booking saga failed: " + result.getFailure().getMessage());
+            }
+            return result;
+        });
+    }
+
+    // Method to run any saga
+    public CompletableFuture<SagaResult> execute(SagaDefinition saga) {
+        definitions.putIfAbsent(saga.getName(), saga);
+        long sagaId = log == null ? nextSagaId.getAndIncrement() : log.newSagaId();
+        return new SagaExecution(saga, executor, log, sagaId, UUID.randomUUID().toString()).start();
+    }
+
+    // Method to finish the sagas the log found in flight: a saga whose steps all completed carries on,
+    // any other saga is compensated. Call once at startup, after registering the saga definitions
+    public CompletableFuture<List<SagaResult>> recover() {
+        if (log == null) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        List<CompletableFuture<SagaResult>> results = new ArrayList<>();
+        for (RecoveredSaga recovered : log.getInFlightSagas()) {
+            SagaDefinition saga = definitions.get(recovered.getSagaName());
+            if (saga == null) {
+                System.out.println("Cannot recover saga " + recovered.getSagaId() + ": unknown saga "
+                        + recovered.getSagaName());
+                continue;
+            }
+            SagaExecution execution = new SagaExecution(saga, executor, log, recovered.getSagaId(),
+                    recovered.getExecutionId());
+            results.add(recovered.isResumable() ? execution.resume(recovered.getCompletedSteps())
+                    : execution.compensate(recovered.getStepsToCompensate(),
+                            new IllegalStateException("Saga was interrupted by a restart")));
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<SagaResult> completed = new ArrayList<>(results.size());
+            results.forEach(result -> completed.add(result.join()));
+            return completed;
+        });
+    }
+}
+
+// SagaBenchmark class showing that saga latency follows the critical path, that sagas run in parallel and
+// how many sagas per second the saga log sustains with durability on
+class SagaBenchmark {
+    private static final int SAGAS = 10_000;
+    private static final int DURABLE_SAGAS = 50_000;
+    private static final long STEP_MILLIS = 20;
+
+    public static void run() throws IOException {
+        // A diamond: reserve, then three independent steps, then confirm. Sequentially this is 5 steps,
+        // but its critical path is 3
+        SagaAction work = () -> Thread.sleep(STEP_MILLIS);
+        SagaDefinition saga = new SagaDefinition.Builder("Diamond")
+                .step("reserve", work, null)
+                .step("room", work, null, "reserve")
+                .step("payment", work, null, "reserve")
+                .step("loyalty", work, null, "reserve")
+                .step("confirm", work, null, "room", "payment", "loyalty")
+                .build();
+        ExecutorService executor = SagaOrchestrator.newVirtualThreadPerTaskExecutor();
+        SagaOrchestrator orchestrator = new SagaOrchestrator(executor);
+
+        orchestrator.execute(saga).join(); // Warm up the executor's threads
+        long start = System.nanoTime();
+        orchestrator.execute(saga).join();
+        System.out.printf("Single saga: %.0f ms (sum of steps %d ms, critical path %d ms)%n",
+                (System.nanoTime() - start) / 1e6, 5 * STEP_MILLIS, 3 * STEP_MILLIS);
+
+        start = System.nanoTime();
+        runAll(orchestrator, saga, SAGAS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d concurrent sagas: %.2f s (%.0f sagas/s)%n", SAGAS, seconds, SAGAS / seconds);
+
+        // The same shape with instant steps, so the saga log is the bottleneck
+        SagaAction noop = () -> {
+        };
+        SagaCompensation undo = idempotencyKey -> {
+        };
+        SagaDefinition durableSaga = new SagaDefinition.Builder("DurableDiamond")
+                .step("reserve", noop, undo)
+                .step("room", noop, undo, "reserve")
+                .step("payment", noop, undo, "reserve")
+                .step("confirm", noop, null, "room", "payment")
+                .build();
+        Path directory = Files.createTempDirectory("saga-benchmark");
+        try (SagaLog log = SagaLog.open(directory)) {
+            SagaOrchestrator durable = new SagaOrchestrator(executor, log);
+            start = System.nanoTime();
+            runAll(durable, durableSaga, DURABLE_SAGAS);
+            seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d durable sagas: %.2f s (%.0f sagas/s, %d records in %d fsyncs)%n", DURABLE_SAGAS,
+                    seconds, DURABLE_SAGAS / seconds, DURABLE_SAGAS * 10L, log.getSyncCount());
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+        executor.shutdown();
+    }
+
+    private static void runAll(SagaOrchestrator orchestrator, SagaDefinition saga, int count) {
+        List<CompletableFuture<SagaResult>> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(orchestrator.execute(saga));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
     }
 }
 
 // Main class to demonstrate the Saga pattern
 public class SagaPattern {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            SagaBenchmark.run();
+            return;
+        }
+
         // Create an instance of the SagaOrchestrator and start the saga
         SagaOrchestrator orchestrator = new SagaOrchestrator();
-        orchestrator.bookHotelRoomSaga();
+        orchestrator.bookHotelRoomSaga().join();
+
+        // A durable orchestrator writes each transition ahead to the saga log, so a saga cut off by a crash
+        // is finished when the orchestrator starts again
+        ExecutorService executor = SagaOrchestrator.newVirtualThreadPerTaskExecutor();
+        Path logDirectory = Files.createTempDirectory("saga-log");
+        CountDownLatch creditStarted = new CountDownLatch(1);
+        SagaDefinition transfer = new SagaDefinition.Builder("Transfer")
+                .step("debit", () -> System.out.println("Debiting source account"),
+                        idempotencyKey -> System.out.println("Re-crediting source account (" + idempotencyKey + ")"))
+                .step("credit", () -> {
+                    creditStarted.countDown();
+                    new CountDownLatch(1).await(); // The process dies while crediting
+                }, idempotencyKey -> System.out.println("Reversing credit to target account (" + idempotencyKey + ")"),
+                        "debit")
+                .build();
+        SagaLog log = SagaLog.open(logDirectory);
+        new SagaOrchestrator(executor, log).execute(transfer);
+        creditStarted.await();
+        log.close();
+
+        SagaLog reopenedLog = SagaLog.open(logDirectory);
+        SagaOrchestrator restarted = new SagaOrchestrator(executor, reopenedLog);
+        restarted.register(transfer);
+        for (SagaResult result : restarted.recover().join()) {
+            System.out.println("Recovered saga " + result.getSagaId() + " (" + result.getSagaName() + "): "
+                    + result.getStatus());
+        }
+        reopenedLog.close();
+        executor.shutdown();
     }
 }
@@ -10,8 +10,45 @@
  * @since 02/05/2024
  */
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 // ServiceRegistration class representing the service registration process
 class ServiceRegistration {
@@ -32,51 +69,1386 @@ class ServiceRegistration {
     private void registerService() {
         registry.registerService(serviceName, serviceUrl);
     }
+
+    // Method to renew the service's lease; a service that stops sending heartbeats expires
+    public boolean heartbeat() {
+        return registry.renewLease(serviceName, serviceUrl);
+    }
+}
+
+// ServiceInstance class representing one running replica of a service and its live load
+class ServiceInstance {
+    // Time constant of the latency average: a sample's weight falls by a factor of e every second, however
+    // many requests arrive, so the average tracks recent time rather than recent request counts
+    private static final double EWMA_DECAY_NANOS = 1e9;
+    private final String serviceName;
+    private final String serviceUrl;
+    private final int weight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong ewmaLatencyBits = new AtomicLong(Double.doubleToRawLongBits(0));
+    private volatile long lastSampleNanos = System.nanoTime();
+    private final AtomicLong lastPickedNanos = new AtomicLong(System.nanoTime());
+    private final long leaseNanos;
+    private volatile long leaseExpiresAtNanos;
+    private volatile boolean removed;
+
+    public ServiceInstance(String serviceName, String serviceUrl, int weight) {
+        this(serviceName, serviceUrl, weight, Long.MAX_VALUE);
+    }
+
+    public ServiceInstance(String serviceName, String serviceUrl, int weight, long leaseNanos) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+        this.serviceName = serviceName;
+        this.serviceUrl = serviceUrl;
+        this.weight = weight;
+        this.leaseNanos = leaseNanos;
+        renewLease();
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getServiceUrl() {
+        return serviceUrl;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public double getEwmaLatencyNanos() {
+        return Double.longBitsToDouble(ewmaLatencyBits.get());
+    }
+
+    public long getLastPickedNanos() {
+        return lastPickedNanos.get();
+    }
+
+    // Method to note that a load balancer picked this instance
+    public void markPicked(long nowNanos) {
+        lastPickedNanos.set(nowNanos);
+    }
+
+    // Method to claim a probe of an instance last picked before the given time; only one caller wins it
+    public boolean tryClaimProbe(long pickedBeforeNanos, long nowNanos) {
+        long lastPicked = lastPickedNanos.get();
+        return lastPicked - pickedBeforeNanos < 0 && lastPickedNanos.compareAndSet(lastPicked, nowNanos);
+    }
+
+    public long getLeaseNanos() {
+        return leaseNanos;
+    }
+
+    public long getLeaseExpiresAtNanos() {
+        return leaseExpiresAtNanos;
+    }
+
+    // Method to check whether the lease ran out at the given time
+    public boolean isExpired(long nowNanos) {
+        return nowNanos - leaseExpiresAtNanos >= 0;
+    }
+
+    // Method to extend the lease by its full duration; only a volatile write, the expiry wheel notices lazily
+    public void renewLease() {
+        long now = System.nanoTime();
+        leaseExpiresAtNanos = leaseNanos >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + leaseNanos;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    // Method to mark the instance as no longer registered
+    void markRemoved() {
+        removed = true;
+    }
+
+    // Method to record that a caller started a request against this instance
+    public void onRequestStart() {
+        inFlight.incrementAndGet();
+    }
+
+    // Method to record that a request finished, folding its latency into the moving average with the weight
+    // exp(-elapsed / decay) on the old average, where elapsed is the time since the previous sample
+    public void onRequestEnd(long latencyNanos) {
+        inFlight.decrementAndGet();
+        long now = System.nanoTime();
+        double oldWeight = Math.exp(-Math.max(0, now - lastSampleNanos) / EWMA_DECAY_NANOS);
+        long current;
+        double updated;
+        do {
+            current = ewmaLatencyBits.get();
+            double average = Double.longBitsToDouble(current);
+            updated = average == 0 ? latencyNanos : latencyNanos + oldWeight * (average - latencyNanos);
+        } while (!ewmaLatencyBits.compareAndSet(current, Double.doubleToRawLongBits(updated)));
+        lastSampleNanos = now;
+    }
+}
+
+// LoadBalancer interface representing a strategy for picking one of a service's instances
+interface LoadBalancer {
+    // Method to choose an instance from a non-empty list
+    ServiceInstance choose(List<ServiceInstance> instances);
+}
+
+// RoundRobinLoadBalancer class cycling through instances in proportion to their weights
+class RoundRobinLoadBalancer implements LoadBalancer {
+    private final AtomicLong counter = new AtomicLong();
+
+    @Override
+    public ServiceInstance choose(List<ServiceInstance> instances) {
+        int totalWeight = 0;
+        for (ServiceInstance instance : instances) {
+            totalWeight += instance.getWeight();
+        }
+        long ticket = Math.floorMod(counter.getAndIncrement(), (long) totalWeight);
+        for (ServiceInstance instance : instances) {
+            ticket -= instance.getWeight();
+            if (ticket < 0) {
+                return instance;
+            }
+        }
+        return instances.get(instances.size() - 1);
+    }
+}
+
+// PowerOfTwoChoicesLoadBalancer class sampling two random instances and taking the less loaded one,
+// which avoids herding onto a single "least loaded" instance without any shared state
+class PowerOfTwoChoicesLoadBalancer implements LoadBalancer {
+    @Override
+    public ServiceInstance choose(List<ServiceInstance> instances) {
+        int size = instances.size();
+        if (size == 1) {
+            return instances.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        ServiceInstance a = instances.get(first);
+        ServiceInstance b = instances.get(second);
+        return cost(a) <= cost(b) ? a : b;
+    }
+
+    // Method to estimate how loaded an instance is; lower is better
+    protected double cost(ServiceInstance instance) {
+        return (instance.getInFlight() + 1) / (double) instance.getWeight();
+    }
+}
+
+// EwmaLoadBalancer class comparing two random instances by latency-weighted load, so slow instances receive
+// proportionally less traffic even when their in-flight counts look similar. An instance's latency only
+// changes when it serves requests, so one that has not been picked for the probe interval is sent a single
+// probe request: a replica that was slow and has recovered wins its traffic back instead of being starved
+class EwmaLoadBalancer implements LoadBalancer {
+    private static final Duration DEFAULT_PROBE_INTERVAL = Duration.ofSeconds(1);
+    private final long probeIntervalNanos;
+
+    public EwmaLoadBalancer() {
+        this(DEFAULT_PROBE_INTERVAL);
+    }
+
+    public EwmaLoadBalancer(Duration probeInterval) {
+        this.probeIntervalNanos = probeInterval.toNanos();
+    }
+
+    @Override
+    public ServiceInstance choose(List<ServiceInstance> instances) {
+        int size = instances.size();
+        if (size == 1) {
+            return instances.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        ServiceInstance a = instances.get(first);
+        ServiceInstance b = instances.get(second);
+        long now = System.nanoTime();
+        long stale = now - probeIntervalNanos;
+        if (a.tryClaimProbe(stale, now)) {
+            return a;
+        }
+        if (b.tryClaimProbe(stale, now)) {
+            return b;
+        }
+        ServiceInstance chosen = cost(a) <= cost(b) ? a : b;
+        chosen.markPicked(now);
+        return chosen;
+    }
+
+    private static double cost(ServiceInstance instance) {
+        // Unmeasured instances count as fast so they get traffic and a first sample
+        double latency = Math.max(1, instance.getEwmaLatencyNanos());
+        return latency * (instance.getInFlight() + 1) / instance.getWeight();
+    }
+}
+
+// Reasons an instance can leave the registry
+enum DeregistrationReason {
+    DEREGISTERED, // The service asked to be removed
+    EXPIRED // The service stopped renewing its lease
+}
+
+// RegistryListener interface notified of registry membership changes
+interface RegistryListener {
+    default void onRegistered(ServiceInstance instance) {
+    }
+
+    default void onDeregistered(ServiceInstance instance, DeregistrationReason reason) {
+    }
+}
+
+// RegistryDelta class describing one versioned change: the full new instance list of a single service
+class RegistryDelta {
+    private final long version;
+    private final String serviceName;
+    private final List<ServiceInstance> instances; // Empty when the service has no instances left
+
+    public RegistryDelta(long version, String serviceName, List<ServiceInstance> instances) {
+        this.version = version;
+        this.serviceName = serviceName;
+        this.instances = instances;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public List<ServiceInstance> getInstances() {
+        return instances;
+    }
+}
+
+// RegistrySnapshot class holding an immutable view of every service at one registry version
+class RegistrySnapshot {
+    private final long version;
+    private final Map<String, List<ServiceInstance>> services;
+
+    public RegistrySnapshot(long version, Map<String, List<ServiceInstance>> services) {
+        this.version = version;
+        this.services = services;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Map<String, List<ServiceInstance>> getServices() {
+        return services;
+    }
+}
+
+// RegistryWatcher interface receiving registry changes pushed in version order
+interface RegistryWatcher {
+    void onDelta(RegistryDelta delta);
+}
+
+// LeaseExpiryWheel class tracking lease deadlines in a hashed timer wheel: each tick only the entries in
+// one slot are examined, so the sweep cost does not grow with the number of registered instances.
+// Heartbeats never touch the wheel; a renewed entry is simply moved to its new slot when its old one comes up
+class LeaseExpiryWheel {
+    private final long tickNanos;
+    private final long startNanos;
+    private final ConcurrentLinkedQueue<ServiceInstance>[] slots;
+    private volatile long currentTick = 0; // Written only by the sweeping thread
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public LeaseExpiryWheel(long tickNanos, int slotCount) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        }
+        this.tickNanos = tickNanos;
+        this.startNanos = System.nanoTime();
+        this.slots = new ConcurrentLinkedQueue[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    // Method to file an instance under the slot of its lease deadline
+    public void schedule(ServiceInstance instance) {
+        long deadline = instance.getLeaseExpiresAtNanos();
+        if (deadline == Long.MAX_VALUE) {
+            return; // Never expires
+        }
+        long tick = Math.max((deadline - startNanos + tickNanos - 1) / tickNanos, currentTick + 1);
+        slots[(int) (tick & (slots.length - 1))].add(instance);
+    }
+
+    // Method to process every tick that has elapsed, handing expired instances to the callback
+    public void advance(long nowNanos, Consumer<ServiceInstance> onExpired) {
+        List<ServiceInstance> renewed = new ArrayList<>();
+        while (startNanos + currentTick * tickNanos <= nowNanos) {
+            ConcurrentLinkedQueue<ServiceInstance> slot = slots[(int) (currentTick & (slots.length - 1))];
+            ServiceInstance instance;
+            while ((instance = slot.poll()) != null) {
+                if (instance.isRemoved()) {
+                    continue;
+                }
+                if (instance.isExpired(nowNanos)) {
+                    onExpired.accept(instance);
+                } else {
+                    renewed.add(instance); // Renewed, or due in a later rotation of the wheel
+                }
+            }
+            currentTick++;
+            for (ServiceInstance pending : renewed) {
+                schedule(pending);
+            }
+            renewed.clear();
+        }
+    }
+}
+
+// StoredRegistration class holding one registration as persisted on disk
+class StoredRegistration {
+    private final String serviceName;
+    private final String serviceUrl;
+    private final int weight;
+    private final long leaseNanos;
+
+    public StoredRegistration(String serviceName, String serviceUrl, int weight, long leaseNanos) {
+        this.serviceName = serviceName;
+        this.serviceUrl = serviceUrl;
+        this.weight = weight;
+        this.leaseNanos = leaseNanos;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getServiceUrl() {
+        return serviceUrl;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public long getLeaseNanos() {
+        return leaseNanos;
+    }
+}
+
+// RegistryStore class persisting registry changes as a snapshot file plus an append-only log. Appends are
+// group-committed: one writer thread drains every queued record, writes them with a single FileChannel
+// write and forces the log once for the whole batch. Compaction writes the live registrations to a new
+// snapshot, renames it into place and truncates the log; records carry the registry version so a crash
+// between those steps only leaves records that recovery recognises as already in the snapshot. If a write
+// fails, the log is cut back to what was last forced and every later append fails too, so an append that
+// succeeded means every earlier one did. Recovery maps the snapshot and the log read-only and replays the
+// log up to the first torn record
+class RegistryStore implements AutoCloseable {
+    private static final int SNAPSHOT_MAGIC = 0x52454753; // "REGS"
+    private static final byte REGISTER = 1;
+    private static final byte DEREGISTER = 2;
+    private static final int MAX_BATCH = 4096;
+    private static final long DEFAULT_COMPACTION_THRESHOLD = 64L << 20; // 64 MB of log
+
+    private final Path snapshotPath;
+    private final Path tempSnapshotPath;
+    private final FileChannel log;
+    private final long compactionThresholdBytes;
+    private final BlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final long recoveredVersion;
+    private final Map<String, Map<String, StoredRegistration>> recovered;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20); // Used only by the writer thread
+    private final CRC32 replayChecksum = new CRC32(); // Recovery state, used only by the constructor
+    private String lastServiceName;
+    private byte[] lastServiceNameBytes;
+    private long syncedBytes; // Log bytes known to be on disk; used only by the writer thread
+    private IOException failure; // Set by the writer thread once a write fails; later appends fail with it
+    private volatile long logBytes;
+    private volatile boolean compactionPending;
+    private final Object closeLock = new Object(); // Orders enqueues against close
+    private boolean closed; // Guarded by closeLock
+
+    // One queued unit of work: an encoded log record, or a snapshot to compact into
+    private static final class Command {
+        final byte[] record;
+        final RegistrySnapshot snapshot;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Command(byte[] record, RegistrySnapshot snapshot) {
+            this.record = record;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private RegistryStore(Path directory, long compactionThresholdBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotPath = directory.resolve("registry.snapshot");
+        this.tempSnapshotPath = directory.resolve("registry.snapshot.tmp");
+        this.compactionThresholdBytes = compactionThresholdBytes;
+        this.log = FileChannel.open(directory.resolve("registry.log"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.recovered = new LinkedHashMap<>();
+        this.recoveredVersion = recover();
+        this.writer = new Thread(this::writeLoop, "registry-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Method to open (or create) a store in the directory, recovering whatever it already holds
+    public static RegistryStore open(Path directory) throws IOException {
+        return new RegistryStore(directory, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    // Method to get the registry version the recovered state corresponds to
+    public long getRecoveredVersion() {
+        return recoveredVersion;
+    }
+
+    // Method to get the recovered registrations (service name -> service URL -> registration)
+    public Map<String, Map<String, StoredRegistration>> getRecovered() {
+        return recovered;
+    }
+
+    // Method to log a registration; the future completes once it is on disk
+    public CompletableFuture<Void> appendRegister(long version, StoredRegistration registration) {
+        return enqueue(new Command(encode(REGISTER, version, registration.getServiceName(),
+                registration.getServiceUrl(), registration.getWeight(), registration.getLeaseNanos()), null));
+    }
+
+    // Method to log a deregistration; the future completes once it is on disk
+    public CompletableFuture<Void> appendDeregister(long version, String serviceName, String serviceUrl) {
+        return enqueue(new Command(encode(DEREGISTER, version, serviceName, serviceUrl, 0, 0), null));
+    }
+
+    // Method to log the deregistrations of several instances, at consecutive versions from firstVersion, as
+    // one queued unit, so they always share a single fsync; the future completes once all are on disk
+    public CompletableFuture<Void> appendDeregisters(long firstVersion, List<ServiceInstance> instances) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (int i = 0; i < instances.size(); i++) {
+            ServiceInstance instance = instances.get(i);
+            records.writeBytes(encode(DEREGISTER, firstVersion + i, instance.getServiceName(),
+                    instance.getServiceUrl(), 0, 0));
+        }
+        return enqueue(new Command(records.toByteArray(), null));
+    }
+
+    // Method to check whether the log has grown enough to be worth compacting
+    public boolean needsCompaction() {
+        return !compactionPending && logBytes >= compactionThresholdBytes;
+    }
+
+    // Method to replace the snapshot with the given state and drop the log records it covers; the snapshot
+    // must be taken in the same order as the appends, i.e. under the registry's write lock
+    public CompletableFuture<Void> compact(RegistrySnapshot snapshot) {
+        compactionPending = true;
+        return enqueue(new Command(null, snapshot));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (closeLock) {
+            closed = true; // Nothing is queued after this, so the writer drains everything before it exits
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    private CompletableFuture<Void> enqueue(Command command) {
+        synchronized (closeLock) {
+            if (closed) {
+                command.done.completeExceptionally(new IOException("Registry store is closed"));
+            } else {
+                queue.add(command);
+            }
+        }
+        return command.done;
+    }
+
+    private boolean isClosed() {
+        synchronized (closeLock) {
+            return closed;
+        }
+    }
+
+    // Method run by the writer thread: drain, write and force batches until closed and empty
+    private void writeLoop() {
+        List<Command> batch = new ArrayList<>(MAX_BATCH);
+        List<Command> appended = new ArrayList<>(MAX_BATCH);
+        while (!isClosed() || !queue.isEmpty()) {
+            try {
+                Command first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Command command : batch) {
+                    if (failure != null) {
+                        command.done.completeExceptionally(failure);
+                    } else if (command.record != null) {
+                        bufferRecord(command.record);
+                        appended.add(command);
+                    } else {
+                        // Everything queued before the compaction must be durable first
+                        commit(appended);
+                        writeSnapshot(command.snapshot);
+                        command.done.complete(null);
+                    }
+                }
+                commit(appended);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                for (Command command : batch) {
+                    command.done.completeExceptionally(failure);
+                }
+                appended.clear();
+                buffer.clear();
+                discardUnsynced();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // Method to cut the log back to what was last forced, so later records never follow a torn batch
+    private void discardUnsynced() {
+        try {
+            log.truncate(syncedBytes);
+            log.position(syncedBytes);
+            logBytes = syncedBytes;
+        } catch (IOException | RuntimeException e) {
+            // The store refuses appends from now on; recovery stops at the first torn record anyway
+        }
+    }
+
+    // Method to stage a record, spilling the buffer to the channel when it is full
+    private void bufferRecord(byte[] record) throws IOException {
+        if (buffer.remaining() < record.length) {
+            writeBuffer();
+            if (buffer.capacity() < record.length) {
+                buffer = ByteBuffer.allocateDirect(record.length);
+            }
+        }
+        buffer.put(record);
+        logBytes += record.length;
+    }
+
+    // Method to write the staged records and force them to disk with a single fsync for the whole batch
+    private void commit(List<Command> appended) throws IOException {
+        if (appended.isEmpty()) {
+            return;
+        }
+        writeBuffer();
+        log.force(false);
+        syncedBytes = log.position();
+        for (Command command : appended) {
+            command.done.complete(null);
+        }
+        appended.clear();
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Method to write a snapshot beside the current one, swap it in atomically and truncate the log
+    private void writeSnapshot(RegistrySnapshot snapshot) throws IOException {
+        try (FileChannel out = FileChannel.open(tempSnapshotPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int count = 0;
+            for (List<ServiceInstance> instances : snapshot.getServices().values()) {
+                count += instances.size();
+            }
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(SNAPSHOT_MAGIC).putLong(snapshot.getVersion()).putInt(count).flip();
+            out.write(header);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+            for (List<ServiceInstance> instances : snapshot.getServices().values()) {
+                for (ServiceInstance instance : instances) {
+                    byte[] record = encode(REGISTER, snapshot.getVersion(), instance.getServiceName(),
+                            instance.getServiceUrl(), instance.getWeight(), instance.getLeaseNanos());
+                    if (chunk.remaining() < record.length) {
+                        chunk.flip();
+                        while (chunk.hasRemaining()) {
+                            out.write(chunk);
+                        }
+                        chunk.clear();
+                    }
+                    chunk.put(record);
+                }
+            }
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+            out.force(true);
+        }
+        Files.move(tempSnapshotPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        log.truncate(0);
+        log.position(0);
+        logBytes = 0;
+        syncedBytes = 0;
+        compactionPending = false;
+    }
+
+    // Method to load the snapshot and replay the log tail, returning the recovered registry version
+    private long recover() throws IOException {
+        long version = 0;
+        if (Files.exists(snapshotPath)) {
+            try (FileChannel in = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                if (mapped.remaining() < 16 || mapped.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a registry snapshot: " + snapshotPath);
+                }
+                version = mapped.getLong();
+                int count = mapped.getInt();
+                for (int i = 0; i < count; i++) {
+                    if (!replay(mapped, Long.MIN_VALUE)) {
+                        throw new IOException("Corrupt registry snapshot: " + snapshotPath);
+                    }
+                }
+            }
+        }
+
+        long logSize = log.size();
+        long validBytes = 0;
+        long lastVersion = version;
+        if (logSize > 0) {
+            MappedByteBuffer mapped = log.map(FileChannel.MapMode.READ_ONLY, 0, logSize);
+            while (true) {
+                long recordVersion = peekVersion(mapped);
+                if (recordVersion < 0 || !replay(mapped, version)) {
+                    break; // End of log, or a record torn by a crash
+                }
+                lastVersion = Math.max(lastVersion, recordVersion);
+                validBytes = mapped.position();
+            }
+        }
+        log.truncate(validBytes);
+        log.position(validBytes);
+        logBytes = validBytes;
+        syncedBytes = validBytes;
+        return lastVersion;
+    }
+
+    // Method to read the version of the record at the buffer's position without consuming it
+    private static long peekVersion(ByteBuffer in) {
+        // Frame: length (4) + CRC (4), then payload starting with type (1) and version (8)
+        if (in.remaining() < 17) {
+            return -1;
+        }
+        return in.getLong(in.position() + 9);
+    }
+
+    // Method to apply the next framed record if it is intact and newer than the given version
+    private boolean replay(ByteBuffer in, long appliedVersion) {
+        if (in.remaining() < 8) {
+            return false;
+        }
+        int start = in.position();
+        int length = in.getInt(start);
+        if (length <= 0 || length > in.remaining() - 8) {
+            return false;
+        }
+        // Checksum the payload in place; recovery touches every record, so it avoids copying them
+        ByteBuffer payload = in.duplicate();
+        payload.position(start + 8).limit(start + 8 + length);
+        replayChecksum.reset();
+        replayChecksum.update(payload);
+        if ((int) replayChecksum.getValue() != in.getInt(start + 4)) {
+            return false;
+        }
+
+        in.position(start + 8);
+        byte type = in.get();
+        long version = in.getLong();
+        int weight = in.getInt();
+        long leaseNanos = in.getLong();
+        String serviceName = readServiceName(in);
+        String serviceUrl = readString(in);
+        in.position(start + 8 + length);
+        if (version <= appliedVersion) {
+            return true; // Already contained in the snapshot
+        }
+        if (type == REGISTER) {
+            recovered.computeIfAbsent(serviceName, name -> new LinkedHashMap<>())
+                    .put(serviceUrl, new StoredRegistration(serviceName, serviceUrl, weight, leaseNanos));
+        } else {
+            Map<String, StoredRegistration> instances = recovered.get(serviceName);
+            if (instances != null && instances.remove(serviceUrl) != null && instances.isEmpty()) {
+                recovered.remove(serviceName);
+            }
+        }
+        return true;
+    }
+
+    // Method to read a service name, reusing the previous string when consecutive records share it
+    private String readServiceName(ByteBuffer in) {
+        int length = in.getInt();
+        ByteBuffer name = in.slice(in.position(), length);
+        in.position(in.position() + length);
+        if (lastServiceName == null || !name.equals(ByteBuffer.wrap(lastServiceNameBytes))) {
+            lastServiceNameBytes = new byte[length];
+            name.get(lastServiceNameBytes);
+            lastServiceName = new String(lastServiceNameBytes, StandardCharsets.UTF_8);
+        }
+        return lastServiceName;
+    }
+
+    // Method to encode one framed record: length, CRC32 of the payload, then the payload itself
+    private static byte[] encode(byte type, long version, String serviceName, String serviceUrl, int weight,
+            long leaseNanos) {
+        byte[] name = serviceName.getBytes(StandardCharsets.UTF_8);
+        byte[] url = serviceUrl.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 1 + 8 + 4 + 8 + 4 + name.length + 4 + url.length;
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadLength);
+        record.putInt(payloadLength).putInt(0);
+        record.put(type).putLong(version).putInt(weight).putLong(leaseNanos);
+        record.putInt(name.length).put(name).putInt(url.length).put(url);
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 8, payloadLength);
+        record.putInt(4, (int) checksum.getValue());
+        return record.array();
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 }
 
-// ServiceRegistry class representing the centralized service registry
+// ServiceRegistry class representing the centralized service registry. Each service maps to an
+// immutable list of instances that writers replace atomically, so discovery reads never lock. A durable
+// registry logs each change first and applies it only once the store has it on disk, so readers, listeners
+// and watchers never see a change that could be lost
 class ServiceRegistry {
-    private Map<String, String> registryMap; // Map to store service information (service name -> service URL)
+    private static final Duration DEFAULT_LEASE = Duration.ofSeconds(30);
+    private static final Duration SWEEP_TICK = Duration.ofMillis(100);
+    private static final int WHEEL_SLOTS = 1024;
+
+    // Map to store service information (service name -> service instances)
+    private final ConcurrentHashMap<String, List<ServiceInstance>> registryMap = new ConcurrentHashMap<>();
+    private final List<RegistryListener> listeners = new CopyOnWriteArrayList<>();
+    private final LeaseExpiryWheel expiryWheel = new LeaseExpiryWheel(SWEEP_TICK.toNanos(), WHEEL_SLOTS);
+    private final ScheduledExecutorService sweeper;
+    private final ExecutorService pusher; // Delivers deltas to watchers one at a time, in version order
+    private final List<RegistryWatcher> watchers = new CopyOnWriteArrayList<>();
+    private final Object writeLock = new Object(); // Orders writes so versions match the order of changes
+    private long version = 0; // Version of the applied state; guarded by writeLock
+    private long loggedVersion = 0; // Version given to the latest change; guarded by writeLock
+    // Changes logged but not yet applied, in version order, and how many of them touch each service URL;
+    // guarded by writeLock
+    private final Deque<PendingChange> unapplied = new ArrayDeque<>();
+    private final Map<String, Integer> pendingUrls = new HashMap<>();
+    private final RegistryStore store; // Null when the registry is not durable
+    private volatile LoadBalancer loadBalancer = new RoundRobinLoadBalancer();
+
+    // A change that has been logged and not yet applied
+    private static final class PendingChange {
+        final long version;
+        final String urlKey;
+        final CompletableFuture<Void> durable;
+        final Runnable apply;
 
-    // Constructor to initialize the registryMap
+        PendingChange(long version, String urlKey, CompletableFuture<Void> durable, Runnable apply) {
+            this.version = version;
+            this.urlKey = urlKey;
+            this.durable = durable;
+            this.apply = apply;
+        }
+    }
+
+    // Constructor to initialize an in-memory registry
     public ServiceRegistry() {
-        registryMap = new HashMap<>();
+        this(null);
+    }
+
+    // Method to open a registry whose registrations survive restarts, restoring the ones stored in the
+    // directory; restored instances get a fresh lease so their services have time to resume heartbeats
+    public static ServiceRegistry durable(Path dataDirectory) throws IOException {
+        return new ServiceRegistry(RegistryStore.open(dataDirectory));
+    }
+
+    // Constructor to initialize the registry and start the lease expiry sweeper
+    private ServiceRegistry(RegistryStore store) {
+        this.store = store;
+        if (store != null) {
+            restore(store);
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "registry-lease-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleAtFixedRate(() -> {
+            List<ServiceInstance> expired = new ArrayList<>();
+            expiryWheel.advance(System.nanoTime(), expired::add);
+            expire(expired);
+        }, SWEEP_TICK.toMillis(), SWEEP_TICK.toMillis(), TimeUnit.MILLISECONDS);
+        pusher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "registry-push");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Method to choose how discovery spreads load over a service's instances
+    public void setLoadBalancer(LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+    }
+
+    // Method to subscribe to registration and deregistration events
+    public void addListener(RegistryListener listener) {
+        listeners.add(listener);
     }
 
     // Method to register a service with the registry
     public void registerService(String serviceName, String serviceUrl) {
-        // Add the service to the registryMap
-        registryMap.put(serviceName, serviceUrl);
+        registerService(serviceName, serviceUrl, 1);
+    }
+
+    // Method to register one weighted instance of a service with the registry
+    public void registerService(String serviceName, String serviceUrl, int weight) {
+        registerService(serviceName, serviceUrl, weight, DEFAULT_LEASE);
+    }
+
+    // Method to register one weighted instance whose registration expires unless renewed within the lease
+    public ServiceInstance registerService(String serviceName, String serviceUrl, int weight, Duration lease) {
+        ServiceInstance instance = new ServiceInstance(serviceName, serviceUrl, weight, lease.toNanos());
+        List<ServiceInstance> replaced = new ArrayList<>(1);
+        // Add the instance to the registryMap, replacing any previous registration of the same URL
+        change(serviceName, serviceUrl, changeVersion -> store.appendRegister(changeVersion,
+                new StoredRegistration(serviceName, serviceUrl, weight, instance.getLeaseNanos())), () -> {
+            registryMap.compute(serviceName, (name, current) -> {
+                List<ServiceInstance> updated = new ArrayList<>();
+                if (current != null) {
+                    for (ServiceInstance existing : current) {
+                        if (existing.getServiceUrl().equals(serviceUrl)) {
+                            replaced.add(existing);
+                        } else {
+                            updated.add(existing);
+                        }
+                    }
+                }
+                updated.add(instance);
+                return List.copyOf(updated);
+            });
+            publishDelta(serviceName);
+        });
+        expiryWheel.schedule(instance);
+        for (ServiceInstance old : replaced) {
+            old.markRemoved();
+        }
+        for (RegistryListener listener : listeners) {
+            listener.onRegistered(instance);
+        }
         System.out.println("Registered service: " + serviceName + " at " + serviceUrl);
+        return instance;
+    }
+
+    // Method to renew the lease of a registered instance, returning false when it is no longer registered
+    public boolean renewLease(String serviceName, String serviceUrl) {
+        ServiceInstance instance = findInstance(serviceName, serviceUrl);
+        if (instance == null) {
+            return false;
+        }
+        instance.renewLease();
+        return true;
+    }
+
+    // Method to remove an instance from the registry
+    public boolean deregisterService(String serviceName, String serviceUrl) {
+        ServiceInstance instance = findInstance(serviceName, serviceUrl);
+        return instance != null && remove(instance, DeregistrationReason.DEREGISTERED);
+    }
+
+    // Method to subscribe to versioned changes; the returned snapshot is the state every later delta
+    // builds on, and deltas at or below its version may still arrive and should be ignored
+    public RegistrySnapshot watch(RegistryWatcher watcher) {
+        synchronized (writeLock) {
+            watchers.add(watcher);
+            return snapshot();
+        }
+    }
+
+    // Method to stop pushing changes to a watcher
+    public void unwatch(RegistryWatcher watcher) {
+        watchers.remove(watcher);
+    }
+
+    // Method to read the full registry state together with its version
+    public RegistrySnapshot snapshot() {
+        synchronized (writeLock) {
+            return new RegistrySnapshot(version, Map.copyOf(registryMap));
+        }
     }
 
     // Method to discover the URL of a service by its name
     public String discoverService(String serviceName) {
-        // Retrieve the service URL from the registryMap
-        String serviceUrl = registryMap.get(serviceName);
-        if (serviceUrl != null) {
-            System.out.println("Discovered service: " + serviceName);
-            return serviceUrl;
-        } else {
-            System.out.println("Service not found: " + serviceName);
+        ServiceInstance instance = discoverInstance(serviceName);
+        return instance != null ? instance.getServiceUrl() : null;
+    }
+
+    // Method to discover one instance of a service, chosen by the load balancer; callers that report
+    // onRequestStart/onRequestEnd on it feed the in-flight and latency-aware strategies. Nothing is logged
+    // here: printing would serialize every caller on the console lock
+    public ServiceInstance discoverInstance(String serviceName) {
+        // Retrieve the service instances from the registryMap
+        List<ServiceInstance> instances = registryMap.get(serviceName);
+        return instances != null && !instances.isEmpty() ? loadBalancer.choose(instances) : null;
+    }
+
+    // Method to fold the log of a durable registry into a fresh snapshot right away
+    public CompletableFuture<Void> compact() {
+        if (store == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (writeLock) {
+            // The snapshot replaces the log, so it must hold every logged change: apply those still in flight
+            if (!unapplied.isEmpty()) {
+                unapplied.peekLast().durable.exceptionally(e -> null).join();
+                applyDurable();
+            }
+            return store.compact(snapshot());
+        }
+    }
+
+    // Method to stop the lease expiry sweeper and the push thread, and close the store of a durable registry
+    public void shutdown() {
+        sweeper.shutdown();
+        pusher.shutdown();
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Method to start compaction in the background once the log is large and every logged change is
+    // applied; callers hold writeLock
+    private void compactIfNeeded() {
+        if (store != null && unapplied.isEmpty() && store.needsCompaction()) {
+            store.compact(snapshot());
+        }
+    }
+
+    // Method to make a change to one service URL: the change gets the next version and is logged under
+    // writeLock, so the log holds changes in version order, and is applied once the store has it on disk.
+    // The caller waits for the store outside the lock, so concurrent changes share an fsync; whichever caller
+    // then takes the lock first applies every durable change, in version order. A change the store could
+    // not log is never applied, and its caller gets the failure. Returns false, changing nothing, if the
+    // condition does not hold under the lock
+    private boolean change(String serviceName, String serviceUrl, LongFunction<CompletableFuture<Void>> append,
+            Runnable apply, BooleanSupplier condition) {
+        String urlKey = serviceName + "\n" + serviceUrl;
+        PendingChange pending;
+        synchronized (writeLock) {
+            if (!condition.getAsBoolean()) {
+                return false;
+            }
+            long changeVersion = ++loggedVersion;
+            pending = new PendingChange(changeVersion, urlKey,
+                    store == null ? CompletableFuture.completedFuture(null) : append.apply(changeVersion), apply);
+            unapplied.add(pending);
+            pendingUrls.merge(urlKey, 1, Integer::sum);
+        }
+        pending.durable.exceptionally(e -> null).join(); // Waits for the group commit that covers the change
+        synchronized (writeLock) {
+            applyDurable();
+        }
+        pending.durable.join(); // Throws if the change could not be logged
+        return true;
+    }
+
+    private void change(String serviceName, String serviceUrl, LongFunction<CompletableFuture<Void>> append,
+            Runnable apply) {
+        change(serviceName, serviceUrl, append, apply, () -> true);
+    }
+
+    // Method to apply, in version order, the logged changes the store has finished with; a change it failed
+    // to log is dropped. Callers hold writeLock
+    private void applyDurable() {
+        while (!unapplied.isEmpty() && unapplied.peek().durable.isDone()) {
+            PendingChange pending = unapplied.poll();
+            if (!pending.durable.isCompletedExceptionally()) {
+                version = pending.version;
+                pending.apply.run();
+            }
+            pendingUrls.computeIfPresent(pending.urlKey, (key, count) -> count == 1 ? null : count - 1);
+        }
+        compactIfNeeded();
+    }
+
+    // Method to rebuild the registry from the registrations recovered by the store
+    private void restore(RegistryStore store) {
+        for (Map<String, StoredRegistration> registrations : store.getRecovered().values()) {
+            List<ServiceInstance> instances = new ArrayList<>(registrations.size());
+            for (StoredRegistration registration : registrations.values()) {
+                ServiceInstance instance = new ServiceInstance(registration.getServiceName(),
+                        registration.getServiceUrl(), registration.getWeight(), registration.getLeaseNanos());
+                instances.add(instance);
+                expiryWheel.schedule(instance);
+            }
+            registryMap.put(instances.get(0).getServiceName(), List.copyOf(instances));
+        }
+        version = store.getRecoveredVersion();
+        loggedVersion = version;
+    }
+
+    // Method to queue the change being applied to one service for watchers, at its version; callers hold
+    // writeLock
+    private void publishDelta(String serviceName) {
+        if (watchers.isEmpty()) {
+            return;
+        }
+        RegistryDelta delta = new RegistryDelta(version, serviceName,
+                registryMap.getOrDefault(serviceName, List.of()));
+        pusher.execute(() -> {
+            for (RegistryWatcher watcher : watchers) {
+                watcher.onDelta(delta);
+            }
+        });
+    }
+
+    // Method to look up the registered instance for a service URL
+    private ServiceInstance findInstance(String serviceName, String serviceUrl) {
+        List<ServiceInstance> instances = registryMap.get(serviceName);
+        if (instances != null) {
+            for (ServiceInstance instance : instances) {
+                if (instance.getServiceUrl().equals(serviceUrl)) {
+                    return instance;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Method to remove the instances whose leases ran out in one sweep, unless heartbeats arrived in the
+    // meantime. Their deregistrations go to the store as one batch, so the sweeper waits for a single fsync
+    // however many instances expire together. A failed batch removes none of them, and the sweeper carries on
+    private void expire(List<ServiceInstance> expired) {
+        long now = System.nanoTime();
+        List<ServiceInstance> removable = new ArrayList<>(expired.size());
+        boolean[] removed = new boolean[expired.size()];
+        CompletableFuture<Void> durable;
+        synchronized (writeLock) {
+            for (ServiceInstance instance : expired) {
+                if (!instance.isExpired(now)) {
+                    expiryWheel.schedule(instance);
+                } else if (canRemove(instance)) {
+                    removable.add(instance);
+                    // Counted as pending right away, so a second entry for the same URL is not removable
+                    pendingUrls.merge(urlKey(instance), 1, Integer::sum);
+                }
+            }
+            if (removable.isEmpty()) {
+                return;
+            }
+            long firstVersion = loggedVersion + 1;
+            loggedVersion += removable.size();
+            durable = store == null ? CompletableFuture.completedFuture(null)
+                    : store.appendDeregisters(firstVersion, removable);
+            for (int i = 0; i < removable.size(); i++) {
+                ServiceInstance instance = removable.get(i);
+                unapplied.add(new PendingChange(firstVersion + i, urlKey(instance), durable,
+                        removal(instance, removed, i)));
+            }
+        }
+        durable.exceptionally(e -> null).join(); // One group commit covers the whole sweep
+        synchronized (writeLock) {
+            applyDurable();
+        }
+        for (int i = 0; i < removable.size(); i++) {
+            if (removed[i]) {
+                notifyRemoved(removable.get(i), DeregistrationReason.EXPIRED);
+            }
+        }
+    }
+
+    // Method to drop an instance from its service's list and notify listeners
+    private boolean remove(ServiceInstance instance, DeregistrationReason reason) {
+        boolean[] removed = new boolean[1];
+        boolean logged = change(instance.getServiceName(), instance.getServiceUrl(),
+                changeVersion -> store.appendDeregister(changeVersion, instance.getServiceName(),
+                        instance.getServiceUrl()), removal(instance, removed, 0), () -> canRemove(instance));
+        if (!logged || !removed[0]) {
+            return false;
+        }
+        notifyRemoved(instance, reason);
+        return true;
+    }
+
+    // Method to check whether an instance may be removed: only an applied instance with no change to its URL
+    // in flight is, since otherwise the URL-keyed deregistration could take out a registration logged before
+    // it. Callers hold writeLock
+    private boolean canRemove(ServiceInstance instance) {
+        return findInstance(instance.getServiceName(), instance.getServiceUrl()) == instance
+                && !pendingUrls.containsKey(urlKey(instance));
+    }
+
+    // Method to build the change that takes an instance out of its service's list, recording in
+    // removed[index] whether it was still there
+    private Runnable removal(ServiceInstance instance, boolean[] removed, int index) {
+        return () -> {
+            registryMap.computeIfPresent(instance.getServiceName(), (name, current) -> {
+                List<ServiceInstance> updated = new ArrayList<>(current.size());
+                for (ServiceInstance existing : current) {
+                    if (existing == instance) {
+                        removed[index] = true;
+                    } else {
+                        updated.add(existing);
+                    }
+                }
+                return updated.isEmpty() ? null : List.copyOf(updated);
+            });
+            publishDelta(instance.getServiceName());
+        };
+    }
+
+    private void notifyRemoved(ServiceInstance instance, DeregistrationReason reason) {
+        instance.markRemoved();
+        for (RegistryListener listener : listeners) {
+            listener.onDeregistered(instance, reason);
+        }
+    }
+
+    private static String urlKey(ServiceInstance instance) {
+        return instance.getServiceName() + "\n" + instance.getServiceUrl();
+    }
+}
+
+// DiscoveryClient class keeping a client-side copy of the registry that the registry keeps current by
+// pushing deltas, so a lookup is a volatile read plus a map lookup and never reaches the registry
+class DiscoveryClient implements RegistryWatcher {
+    private final ServiceRegistry registry;
+    private final LoadBalancer loadBalancer;
+    private volatile RegistrySnapshot cache; // Replaced wholesale by the push thread
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+
+    public DiscoveryClient(ServiceRegistry registry, LoadBalancer loadBalancer) {
+        this.registry = registry;
+        this.loadBalancer = loadBalancer;
+        this.cache = registry.watch(this);
+    }
+
+    // Method to discover the URL of a service from the local cache
+    public String discoverService(String serviceName) {
+        List<ServiceInstance> instances = cache.getServices().get(serviceName);
+        if (instances == null || instances.isEmpty()) {
+            misses.increment(); // Counted rather than printed to keep the lookup path free of I/O
             return null;
         }
+        return loadBalancer.choose(instances).getServiceUrl();
+    }
+
+    @Override
+    public void onDelta(RegistryDelta delta) {
+        RegistrySnapshot current = cache;
+        if (delta.getVersion() <= current.getVersion()) {
+            return; // Already part of the snapshot
+        }
+        if (delta.getVersion() != current.getVersion() + 1) {
+            // A delta went missing, so fall back to a full copy
+            resyncs.increment();
+            cache = registry.snapshot();
+            return;
+        }
+        Map<String, List<ServiceInstance>> services = new HashMap<>(current.getServices());
+        if (delta.getInstances().isEmpty()) {
+            services.remove(delta.getServiceName());
+        } else {
+            services.put(delta.getServiceName(), delta.getInstances());
+        }
+        cache = new RegistrySnapshot(delta.getVersion(), Collections.unmodifiableMap(services));
+    }
+
+    // Method to get the registry version the cache reflects
+    public long getVersion() {
+        return cache.getVersion();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getResyncs() {
+        return resyncs.sum();
+    }
+
+    // Method to stop receiving pushes from the registry
+    public void close() {
+        registry.unwatch(this);
+    }
+}
+
+// RegistryStoreBenchmark class measuring durable registration throughput and startup time at 1M entries
+class RegistryStoreBenchmark {
+    private static final int SERVICES = 1000;
+    private static final int INSTANCES_PER_SERVICE = 1000;
+
+    public static void run() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("registry-benchmark");
+        try {
+            // Append 1M registrations; concurrent appends share fsyncs through group commit
+            long start = System.nanoTime();
+            try (RegistryStore store = RegistryStore.open(directory)) {
+                List<CompletableFuture<Void>> pending = new ArrayList<>(SERVICES * INSTANCES_PER_SERVICE);
+                long version = 0;
+                for (int s = 0; s < SERVICES; s++) {
+                    for (int i = 0; i < INSTANCES_PER_SERVICE; i++) {
+                        pending.add(store.appendRegister(++version, new StoredRegistration("service-" + s,
+                                "http://10.0." + s + "." + i + ":8080", 1, Duration.ofSeconds(30).toNanos())));
+                    }
+                }
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+            }
+            report("Appended 1M registrations", start);
+
+            start = System.nanoTime();
+            ServiceRegistry fromLog = ServiceRegistry.durable(directory);
+            report("Startup replaying a 1M-record log", start);
+            fromLog.compact().join();
+            fromLog.shutdown();
+
+            start = System.nanoTime();
+            ServiceRegistry fromSnapshot = ServiceRegistry.durable(directory);
+            report("Startup from a 1M-entry snapshot", start);
+            fromSnapshot.shutdown();
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static void report(String step, long startNanos) {
+        System.out.printf("%s: %.0f ms%n", step, (System.nanoTime() - startNanos) / 1e6);
     }
 }
 
 public class ServiceRegistryPattern {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            RegistryStoreBenchmark.run();
+            return;
+        }
+
         // Create a service registry
         ServiceRegistry registry = new ServiceRegistry();
 
+        // Print membership changes as they happen
+        registry.addListener(new RegistryListener() {
+            @Override
+            public void onDeregistered(ServiceInstance instance, DeregistrationReason reason) {
+                System.out.println("Deregistered " + instance.getServiceName() + " at "
+                        + instance.getServiceUrl() + " (" + reason + ")");
+            }
+        });
+
         // Service registration
-        // ServiceRegistration registration =
-        new ServiceRegistration("UserService", "http://localhost:8081", registry);
+        ServiceRegistration registration =
+                new ServiceRegistration("UserService", "http://localhost:8081", registry);
 
         // Service discovery
         String userServiceUrl = registry.discoverService("UserService");
         if (userServiceUrl != null) {
             System.out.println("User service URL: " + userServiceUrl);
         }
+
+        // Register weighted replicas and spread discovery over them
+        registry.registerService("OrderService", "http://localhost:8091", 2);
+        registry.registerService("OrderService", "http://localhost:8092", 1);
+        for (int i = 0; i < 3; i++) {
+            System.out.println("Order service URL: " + registry.discoverService("OrderService"));
+        }
+
+        // Latency-aware balancing steers traffic away from a slow replica
+        registry.setLoadBalancer(new EwmaLoadBalancer());
+        Map<String, Integer> picks = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            ServiceInstance instance = registry.discoverInstance("OrderService");
+            instance.onRequestStart();
+            long simulatedLatency = instance.getServiceUrl().endsWith("8091") ? 50_000_000 : 5_000_000;
+            instance.onRequestEnd(simulatedLatency);
+            picks.merge(instance.getServiceUrl(), 1, Integer::sum);
+        }
+        System.out.println("EWMA picks: " + picks);
+
+        // Once the slow replica recovers, probes give it fresh samples and its traffic comes back as its
+        // latency average decays; a short probe interval keeps the demo brief
+        registry.setLoadBalancer(new EwmaLoadBalancer(Duration.ofMillis(50)));
+        picks.clear();
+        long recoveryEnd = System.nanoTime() + Duration.ofSeconds(3).toNanos();
+        while (System.nanoTime() < recoveryEnd) {
+            ServiceInstance instance = registry.discoverInstance("OrderService");
+            instance.onRequestStart();
+            instance.onRequestEnd(5_000_000);
+            if (recoveryEnd - System.nanoTime() < Duration.ofSeconds(1).toNanos()) {
+                picks.merge(instance.getServiceUrl(), 1, Integer::sum); // Count the last second only
+            }
+            Thread.sleep(1);
+        }
+        System.out.println("EWMA picks after recovery: " + picks);
+
+        // A replica with a short lease expires once it stops sending heartbeats, while a live one stays
+        registry.registerService("PaymentService", "http://localhost:8101", 1, Duration.ofMillis(300));
+        for (int i = 0; i < 6; i++) {
+            registration.heartbeat();
+            Thread.sleep(100);
+        }
+        System.out.println("Payment service URL: " + registry.discoverService("PaymentService"));
+        System.out.println("User service URL: " + registry.discoverService("UserService"));
+
+        // A discovery client answers from its pushed cache and follows registry changes
+        DiscoveryClient client = new DiscoveryClient(registry, new RoundRobinLoadBalancer());
+        System.out.println("Cached order service URL: " + client.discoverService("OrderService"));
+        registry.registerService("InventoryService", "http://localhost:8111");
+        Thread.sleep(50); // Give the push thread a moment to deliver the delta
+        System.out.println("Cached inventory service URL: " + client.discoverService("InventoryService")
+                + " (version " + client.getVersion() + ")");
+        client.close();
+        registry.shutdown();
+
+        // A durable registry restores its registrations after a restart instead of waiting for services to
+        // re-register
+        Path dataDirectory = Files.createTempDirectory("service-registry");
+        ServiceRegistry durableRegistry = ServiceRegistry.durable(dataDirectory);
+        durableRegistry.registerService("ShippingService", "http://localhost:8121");
+        durableRegistry.shutdown();
+        ServiceRegistry restartedRegistry = ServiceRegistry.durable(dataDirectory);
+        System.out.println("Shipping service URL after restart: " + restartedRegistry.discoverService("ShippingService"));
+        restartedRegistry.shutdown();
     }
 }